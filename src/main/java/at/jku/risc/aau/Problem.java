@@ -3,10 +3,13 @@ package at.jku.risc.aau;
 import at.jku.risc.aau.impl.Algorithm;
 import at.jku.risc.aau.impl.Parser;
 import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.term.TermArena;
 import at.jku.risc.aau.util.Pair;
 import at.jku.risc.aau.util.Panic;
 
 import java.util.*;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 /**
  * For a given anti-unification problem, create a {@linkplain Problem} object, and call
@@ -19,7 +22,14 @@ public class Problem {
     private FuzzySystem customFuzzySystem = null;
     private float lambda = 1.0f;
     private TNorm tNorm = Math::min;
-    private boolean merge = true, witnesses = true;
+    private boolean merge = true, lazyWitnesses = false;
+    private WitnessPolicy witnessPolicy = WitnessPolicy.ALL;
+    private boolean depthFirst = false, pruneDuplicates = false, memoize = false, factorize = false;
+    private int parallelism = 1;
+    private int expandWorkers = 0, mergeWorkers = 0;
+    private int beamWidth = 0;
+    private int conjunctionCacheSize = 4096;
+    private long timeLimit = 0, maxConfigs = 0, maxConjunctionBranches = 0, maxHeap = 0;
     
     // *** constructors ***
     
@@ -46,6 +56,15 @@ public class Problem {
         this(Pair.of(lhs, rhs));
     }
     
+    /**
+     * Create a {@linkplain Problem} instance from two {@linkplain TermArena TermArenas},
+     * which store big terms without an object per node.
+     * (See also {@linkplain Problem#Problem(Pair)})
+     */
+    public Problem(TermArena lhs, TermArena rhs) {
+        this(Pair.of(lhs.view(), rhs.view()));
+    }
+    
     /**
      * Create a {@linkplain Problem} instance based on an equation in String representation:
      * <br><br>
@@ -93,6 +112,79 @@ public class Problem {
         return Algorithm.solve(this);
     }
     
+    /**
+     * Run the {@linkplain Algorithm} like {@linkplain Problem#solve()}, and also report how the run ended.
+     * <br>
+     * Unless the {@linkplain Status} is {@linkplain Status#COMPLETE}, a budget ran out,
+     * and the solutions are only those found so far.
+     *
+     * @return the set of {@linkplain Solution}s found, and the {@linkplain Status} of the run
+     */
+    public Pair<Set<Solution>, Status> solveWithStatus() {
+        Algorithm algorithm = new Algorithm(this);
+        Set<Solution> solutions = algorithm.run();
+        return Pair.of(solutions, algorithm.status());
+    }
+    
+    /**
+     * Run the {@linkplain Algorithm} for several <b>λ</b>s at once, instead of the problem's own <b>λ</b>.
+     * <br>
+     * The problem is only explored once, at the lowest <b>λ</b>, and each branch is tracked with the <b>λ</b>s it is valid for.
+     * <br>
+     * All <b>λ</b>s share the budgets, see {@linkplain Algorithm#sweeping(Problem, float...)} to check if they ran out.
+     *
+     * @return the set of possible {@linkplain Solution}s for each of the (at most 64 distinct) <b>lambdas</b>
+     */
+    public SortedMap<Float, Set<Solution>> solveSweep(float... lambdas) {
+        return Algorithm.sweep(this, lambdas);
+    }
+    
+    /**
+     * Find the highest <b>λ</b> (but at least the problem's own) at which the problem still has a non-trivial solution,
+     * i.e. one whose generalization isn't just a variable.
+     *
+     * @return the highest such <b>λ</b>, or <b>0</b> if there is none
+     */
+    public float maxNonTrivialLambda() {
+        return new Algorithm(this).maxNonTrivialLambda();
+    }
+    
+    /**
+     * Run the {@linkplain Algorithm}, but only find the <b>k</b> best {@linkplain Solution}s,
+     * i.e. those with the highest <b>min(α1, α2)</b>.
+     * <br>
+     * Branches are explored best-first on the calling thread, and exploration stops as soon as the <b>k</b> best solutions are found.
+     *
+     * @return up to <b>k</b> {@linkplain Solution}s, ordered from highest to lowest <b>min(α1, α2)</b>
+     */
+    public List<Solution> topK(int k) {
+        if (k < 1) {
+            throw Panic.arg("k must be at least 1");
+        }
+        return new Algorithm(this).topK(k);
+    }
+    
+    /**
+     * Lazily run the {@linkplain Algorithm} with the defined problem and its current settings.
+     * <br>
+     * Solutions are produced on demand, so only as much of the problem is explored as is needed to find the next one.
+     * (This always explores branches depth-first on the calling thread, see {@linkplain Problem#depthFirst(boolean)}.)
+     *
+     * @return an iterator over the possible {@linkplain Solution}s to the defined problem
+     */
+    public Iterator<Solution> iterator() {
+        return new Algorithm(this).iterator();
+    }
+    
+    /**
+     * Lazily run the {@linkplain Algorithm}, see {@linkplain Problem#iterator()}.
+     *
+     * @return a sequential stream of the possible {@linkplain Solution}s to the defined problem
+     */
+    public Stream<Solution> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.NONNULL), false);
+    }
+    
     // *** additional parameters ***
     
     /**
@@ -223,7 +315,7 @@ public class Problem {
      * <br>
      * Otherwise, we can skip some computation steps.
      * <br>
-     * If this and {@linkplain Problem#witnesses} are both <b>false</b>,
+     * If this is <b>false</b>, and the witness policy is {@linkplain WitnessPolicy#BEST} or {@linkplain WitnessPolicy#NONE},
      * the <b>expand</b> step is skipped, which is usually the most expensive.
      *
      * @param merge default: <b>true</b>
@@ -240,19 +332,327 @@ public class Problem {
     /**
      * Define if the algorithm should produce witness substitutions.
      * <br>
-     * Otherwise, we can skip some computation steps.
-     * <br>
-     * If this and {@linkplain Problem#merge} are both <b>false</b>,
-     * the <b>expand</b> step is skipped, which is usually the most expensive.
+     * Shorthand for {@linkplain Problem#witnesses(WitnessPolicy)} with {@linkplain WitnessPolicy#ALL} or {@linkplain WitnessPolicy#NONE}.
      *
      * @param witnesses default: <b>true</b>
      */
     public Problem witnesses(boolean witnesses) {
-        this.witnesses = witnesses;
+        return witnesses(witnesses ? WitnessPolicy.ALL : WitnessPolicy.NONE);
+    }
+    
+    /**
+     * Define how much of the witness substitutions the algorithm should produce.
+     * <br>
+     * The less it keeps, the more computation steps we can skip:
+     * <ul>
+     *     <li> {@linkplain WitnessPolicy#BEST} doesn't need the <b>expand</b> step, unless it is needed for merging,
+     *     and most variables are then witnessed by the single term they generalize
+     *     <li> {@linkplain WitnessPolicy#COUNT} needs the <b>expand</b> step, but doesn't keep the expanded sets
+     *     <li> {@linkplain WitnessPolicy#NONE} skips the <b>expand</b> step if {@linkplain Problem#merge} is <b>false</b>,
+     *     which is usually the most expensive
+     * </ul>
+     *
+     * @param witnessPolicy default: <b>ALL</b>
+     */
+    public Problem witnesses(WitnessPolicy witnessPolicy) {
+        if (witnessPolicy == null) {
+            throw Panic.arg("Witness policy must not be null");
+        }
+        this.witnessPolicy = witnessPolicy;
         return this;
     }
     
+    public WitnessPolicy getWitnessPolicy() {
+        return witnessPolicy;
+    }
+    
+    /**
+     * If the solutions come with witnesses at all, i.e. unless the policy is {@linkplain WitnessPolicy#NONE}.
+     * <br>
+     * With {@linkplain WitnessPolicy#COUNT}, those only hold the number of substitutions per variable,
+     * see {@linkplain Problem#getWitnessPolicy()}.
+     */
     public boolean wantsWitnesses() {
-        return witnesses;
+        return witnessPolicy != WitnessPolicy.NONE;
+    }
+    
+    /**
+     * Define if the witnesses should only be computed once they are read,
+     * via {@linkplain Solution#witnesses()}. The fields {@linkplain Solution#lhs} and {@linkplain Solution#rhs} stay <b>null</b> then.
+     * <br>
+     * If {@linkplain Problem#merge} is <b>false</b>, this defers the <b>expand</b> step as well,
+     * so the generalizations are found as fast as without witnesses.
+     * Merging changes the generalizations though, so with merging enabled, only the witnesses themselves are deferred.
+     * <br><br>
+     * Deferred work doesn't count towards the budgets (see {@linkplain Problem#timeLimit(long)}),
+     * and they are computed sequentially. Until then, the solutions keep their linear configs and the fuzzy system alive.
+     * Has no effect with {@linkplain WitnessPolicy#NONE}.
+     *
+     * @param lazyWitnesses default: <b>false</b>
+     */
+    public Problem lazyWitnesses(boolean lazyWitnesses) {
+        this.lazyWitnesses = lazyWitnesses;
+        return this;
+    }
+    
+    public boolean wantsLazyWitnesses() {
+        return lazyWitnesses;
+    }
+    
+    // *** execution ***
+    
+    /**
+     * Define if the algorithm should explore branches depth-first.
+     * <br>
+     * Each branch is then post-processed into its {@linkplain Solution} as soon as it is finished,
+     * so memory use grows with the depth of the search, rather than its width.
+     * <br><br>
+     * The solution set is the same as with breadth-first exploration.
+     *
+     * @param depthFirst default: <b>false</b>
+     */
+    public Problem depthFirst(boolean depthFirst) {
+        this.depthFirst = depthFirst;
+        return this;
+    }
+    
+    public boolean wantsDepthFirst() {
+        return depthFirst;
+    }
+    
+    /**
+     * Define if the algorithm should skip branches whose remaining work is equal (up to variable renaming) to that of an already
+     * explored branch, i.e. which only differ in their partial generalizations.
+     * <br>
+     * The solutions of a skipped branch are copied from the explored one once the search is done, so the solutions stay the same.
+     * This requires keeping a fingerprint of every explored branch, and every linear branch, in memory.
+     * <br>
+     * Only applies to {@linkplain Problem#solve()} and λ-sweeps, not to streams and top-k searches.
+     * The number of pruned branches is logged, and available via {@linkplain Algorithm#prunedBranches()}.
+     *
+     * @param pruneDuplicates default: <b>false</b>
+     */
+    public Problem pruneDuplicates(boolean pruneDuplicates) {
+        this.pruneDuplicates = pruneDuplicates;
+        return this;
+    }
+    
+    public boolean wantsPruneDuplicates() {
+        return pruneDuplicates;
+    }
+    
+    /**
+     * Define if the algorithm should solve each anti-unification sub-problem once, and reuse its solutions
+     * wherever the same sub-problem appears again.
+     * <br>
+     * Sub-problems are fully solved one after another on the calling thread,
+     * so this takes precedence over {@linkplain Problem#depthFirst(boolean)}, {@linkplain Problem#parallelism(int)}
+     * and {@linkplain Problem#pruneDuplicates(boolean)} (with a warning, if any of them is set).
+     * With the default {@linkplain Problem#tNorm(TNorm) t-norm}, the solution set is the same.
+     *
+     * @param memoize default: <b>false</b>
+     */
+    public Problem memoize(boolean memoize) {
+        this.memoize = memoize;
+        return this;
+    }
+    
+    public boolean wantsMemoize() {
+        return memoize;
+    }
+    
+    /**
+     * Define if the arguments of a decomposition should be solved independently of each other,
+     * and then combined via the {@linkplain Problem#tNorm(TNorm) t-norm}.
+     * <br>
+     * Each argument is then solved once for all contexts it appears in, instead of once per combination of its siblings' solutions.
+     * Where a combination would fall below <b>λ</b>, the arguments are solved in their context instead, so the solution set is the same.
+     * <br>
+     * Implies {@linkplain Problem#memoize(boolean)}.
+     *
+     * @param factorize default: <b>false</b>
+     */
+    public Problem factorize(boolean factorize) {
+        this.factorize = factorize;
+        return this;
+    }
+    
+    public boolean wantsFactorize() {
+        return factorize;
+    }
+    
+    /**
+     * Define how many threads the algorithm may use to explore branches.
+     * <br>
+     * With <b>parallelism > 1</b>, each branch is explored as its own task in a {@linkplain java.util.concurrent.ForkJoinPool ForkJoinPool},
+     * which produces the same set of solutions as the sequential execution.
+     * <br><br>
+     * If a {@linkplain Problem#customFuzzySystem(FuzzySystem) custom fuzzy system} is used, it must be thread-safe.
+     *
+     * @param parallelism default: <b>1</b>
+     */
+    public Problem parallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw Panic.arg("Parallelism must be at least 1");
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+    
+    public int getParallelism() {
+        return parallelism;
+    }
+    
+    /**
+     * Trade completeness for bounded latency: with a <b>beamWidth > 0</b>,
+     * the algorithm only keeps the <b>beamWidth</b> most promising branches at each step
+     * (highest <b>min(α1, α2)</b> first, then fewest AUTs left), and drops all others.
+     * <br>
+     * If any branch was dropped, the solution set may be incomplete, and each {@linkplain Solution} is marked as
+     * {@linkplain Solution#approximate}.
+     * <br>
+     * This takes precedence over {@linkplain Problem#memoize(boolean)}, {@linkplain Problem#depthFirst(boolean)}
+     * and {@linkplain Problem#parallelism(int)}.
+     *
+     * @param beamWidth default: <b>0</b> (exact search)
+     */
+    public Problem beamWidth(int beamWidth) {
+        if (beamWidth < 0) {
+            throw Panic.arg("Beam width must not be negative");
+        }
+        this.beamWidth = beamWidth;
+        return this;
+    }
+    
+    public int getBeamWidth() {
+        return beamWidth;
+    }
+    
+    /**
+     * Define how many results of the special conjunction (used for consistency checks, witnesses and merging)
+     * the algorithm may keep around for reuse. When the cache is full, the least recently used results are evicted.
+     * <br>
+     * The expanded AUTs of the linear configs are kept in a second cache of the same size.
+     * Use <b>0</b> to disable both caches.
+     *
+     * @param conjunctionCacheSize default: <b>4096</b>
+     */
+    public Problem conjunctionCacheSize(int conjunctionCacheSize) {
+        if (conjunctionCacheSize < 0) {
+            throw Panic.arg("Conjunction cache size must not be negative");
+        }
+        this.conjunctionCacheSize = conjunctionCacheSize;
+        return this;
+    }
+    
+    public int getConjunctionCacheSize() {
+        return conjunctionCacheSize;
+    }
+    
+    /**
+     * Define if post-processing should overlap with the search, as a pipeline of concurrent stages:
+     * linear configs are handed to <b>expandWorkers</b> threads as soon as they are found,
+     * which hand them on to <b>mergeWorkers</b> threads, which produce the {@linkplain Solution Solutions}.
+     * <br>
+     * The stages are connected by bounded queues, so a stage which falls behind slows down the ones before it.
+     * <br><br>
+     * Otherwise, all linear configs are found first, then all of them are expanded, then all of them merged.
+     * Either way, the solution set is the same.
+     * Only applies if there is anything to post-process (see {@linkplain Problem#merge} and {@linkplain Problem#witnesses}),
+     * and not to {@linkplain Problem#depthFirst(boolean) depth-first} search, which post-processes each linear config right away.
+     *
+     * @param expandWorkers default: <b>0</b> (no pipeline)
+     * @param mergeWorkers  default: <b>0</b> (no pipeline)
+     */
+    public Problem pipeline(int expandWorkers, int mergeWorkers) {
+        if (expandWorkers < 0 || mergeWorkers < 0) {
+            throw Panic.arg("Pipeline worker counts must not be negative");
+        }
+        if ((expandWorkers == 0) != (mergeWorkers == 0)) {
+            throw Panic.arg("Pipeline needs workers for both stages, or for neither");
+        }
+        this.expandWorkers = expandWorkers;
+        this.mergeWorkers = mergeWorkers;
+        return this;
+    }
+    
+    public int getExpandWorkers() {
+        return expandWorkers;
+    }
+    
+    public int getMergeWorkers() {
+        return mergeWorkers;
+    }
+    
+    // *** budgets ***
+    
+    // When a budget is used up, the algorithm stops early and returns the solutions found so far.
+    // Use 'new Algorithm(problem)' instead of 'solve()' to see which budget stopped it via 'Algorithm.status()',
+    // or to stop it from another thread via 'Algorithm.cancel()'.
+    // (For a λ-sweep, use 'Algorithm.sweeping(problem, lambdas).sweep()' instead of 'solveSweep(lambdas)'.)
+    
+    /**
+     * Define how long the algorithm may run, in milliseconds.
+     *
+     * @param timeLimit default: <b>0</b> (unlimited)
+     */
+    public Problem timeLimit(long timeLimit) {
+        this.timeLimit = nonNegative(timeLimit, "Time limit");
+        return this;
+    }
+    
+    public long getTimeLimit() {
+        return timeLimit;
+    }
+    
+    /**
+     * Define how many {@linkplain Algorithm} steps (i.e. rule applications to a branch) the algorithm may take.
+     *
+     * @param maxConfigs default: <b>0</b> (unlimited)
+     */
+    public Problem maxConfigs(long maxConfigs) {
+        this.maxConfigs = nonNegative(maxConfigs, "Max configs");
+        return this;
+    }
+    
+    public long getMaxConfigs() {
+        return maxConfigs;
+    }
+    
+    /**
+     * Define how many branches the special conjunction (used for consistency checks, witnesses and merging) may explore in total.
+     *
+     * @param maxConjunctionBranches default: <b>0</b> (unlimited)
+     */
+    public Problem maxConjunctionBranches(long maxConjunctionBranches) {
+        this.maxConjunctionBranches = nonNegative(maxConjunctionBranches, "Max conjunction branches");
+        return this;
+    }
+    
+    public long getMaxConjunctionBranches() {
+        return maxConjunctionBranches;
+    }
+    
+    /**
+     * Define how much heap the JVM may use while the algorithm runs, in bytes.
+     * <br>
+     * This is approximate, since it measures the whole JVM, including garbage which wasn't collected yet.
+     *
+     * @param maxHeap default: <b>0</b> (unlimited)
+     */
+    public Problem maxHeap(long maxHeap) {
+        this.maxHeap = nonNegative(maxHeap, "Max heap");
+        return this;
+    }
+    
+    public long getMaxHeap() {
+        return maxHeap;
+    }
+    
+    private static long nonNegative(long budget, String name) {
+        if (budget < 0) {
+            throw Panic.arg("%s must not be negative", name);
+        }
+        return budget;
     }
 }
@@ -1,40 +1,50 @@
 package at.jku.risc.aau;
 
 import at.jku.risc.aau.impl.Algorithm;
-import at.jku.risc.aau.impl.Substitution;
 import at.jku.risc.aau.term.GroundTerm;
 import at.jku.risc.aau.term.Term;
 import at.jku.risc.aau.util.ANSI;
-import at.jku.risc.aau.util.Data;
 import at.jku.risc.aau.util.Pair;
 
-import java.util.Collections;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.math.BigInteger;
+import java.util.*;
+import java.util.function.Supplier;
 
 /**
  * The output of the {@linkplain Algorithm Algorithm} is a set of {@linkplain Solution Solutions},
  * where each solution gives a unique {@linkplain Solution#generalization} of the problem terms.
  * <br><br>
  * If enabled, each variable in the {@linkplain Solution#generalization}
- * gets an associated {@linkplain Witness#substitutions} entry per side of the equation.
+ * gets an associated {@linkplain Witness#substitutions} entry per side of the equation,
+ * see {@linkplain Solution#lhs} and {@linkplain Solution#rhs}.
  * You can apply any combination of these to get a term which approximates the respective problem term.
  * You can get all possible approximating terms with {@linkplain Solution#enumerate()}.
  * <br><br>
  * {@linkplain Solution#alpha1} and {@linkplain Solution#alpha2} are the maximum proximities you can get for each side.
+ * <br><br>
+ * {@linkplain Solution#approximate} is set if the solution was found by an approximate search
+ * (see {@linkplain Problem#beamWidth(int)}) which dropped some branches, so the solution set may be incomplete.
+ * <br><br>
+ * With {@linkplain Problem#lazyWitnesses(boolean)}, {@linkplain Solution#lhs} and {@linkplain Solution#rhs} stay <b>null</b>,
+ * and the witnesses are only computed on the first call of {@linkplain Solution#witnesses()}.
  */
 public class Solution {
     public final Term generalization;
     public final Witness lhs, rhs;
     public final float alpha1, alpha2;
+    public final boolean approximate;
+    private final Supplier<Pair<Witness, Witness>> deferredWitnesses;
+    private volatile Pair<Witness, Witness> witnesses = null;
     
     public Solution(Term generalization, Witness lhs, Witness rhs, float alpha1, float alpha2) {
+        this(generalization, lhs, rhs, alpha1, alpha2, false);
+    }
+    
+    public Solution(Term generalization, Witness lhs, Witness rhs, float alpha1, float alpha2, boolean approximate) {
         this.generalization = generalization;
         assert (lhs == null) == (rhs == null);
         if (lhs != null) {
-            assert lhs.substitutions.keySet().equals(rhs.substitutions.keySet());
+            assert lhs.variables().equals(rhs.variables());
             this.lhs = lhs;
             this.rhs = rhs;
         } else {
@@ -43,34 +53,101 @@ public class Solution {
         }
         this.alpha1 = alpha1;
         this.alpha2 = alpha2;
+        this.approximate = approximate;
+        this.deferredWitnesses = null;
     }
     
+    /**
+     * Solution whose witnesses are computed by <b>witnesses</b> when they are first needed.
+     */
+    public Solution(Term generalization, Supplier<Pair<Witness, Witness>> witnesses, float alpha1, float alpha2, boolean approximate) {
+        this.generalization = generalization;
+        this.lhs = null;
+        this.rhs = null;
+        this.alpha1 = alpha1;
+        this.alpha2 = alpha2;
+        this.approximate = approximate;
+        this.deferredWitnesses = witnesses;
+    }
+    
+    /**
+     * The witnesses of the LHS and RHS, computed now if they are lazy, or <b>null</b> if witnesses are disabled.
+     */
+    public Pair<Witness, Witness> witnesses() {
+        if (deferredWitnesses == null) {
+            return Pair.of(lhs, rhs);
+        }
+        if (witnesses == null) {
+            synchronized (this) {
+                if (witnesses == null) {
+                    Pair<Witness, Witness> computed = deferredWitnesses.get();
+                    assert computed.left.variables().equals(computed.right.variables());
+                    witnesses = computed;
+                }
+            }
+        }
+        return witnesses;
+    }
+    
+    /**
+     * If the witnesses are computed lazily, only <b>true</b> once they have been.
+     */
+    public boolean hasWitnesses() {
+        return deferredWitnesses == null ? lhs != null : witnesses != null;
+    }
+    
+    /**
+     * All approximating terms per side, see {@linkplain Witness#instances(Term)}.
+     * <br>
+     * This materializes every combination of the witness substitutions, which can be exponentially many;
+     * use {@linkplain Solution#instances()} to go through them one at a time instead.
+     */
     public Pair<Set<GroundTerm>, Set<GroundTerm>> enumerate() {
-        return Pair.of(enumerateSide(lhs.substitutions), enumerateSide(rhs.substitutions));
+        Pair<Iterator<GroundTerm>, Iterator<GroundTerm>> instances = instances();
+        return Pair.of(collect(instances.left), collect(instances.right));
+    }
+    
+    private static Set<GroundTerm> collect(Iterator<GroundTerm> instances) {
+        Set<GroundTerm> collected = new HashSet<>();
+        instances.forEachRemaining(collected::add);
+        return collected;
+    }
+    
+    /**
+     * Lazily iterates over the approximating terms per side, see {@linkplain Witness#instances(Term)}.
+     */
+    public Pair<Iterator<GroundTerm>, Iterator<GroundTerm>> instances() {
+        Pair<Witness, Witness> witnesses = witnesses();
+        return Pair.of(witnesses.left.instances(generalization), witnesses.right.instances(generalization));
+    }
+    
+    /**
+     * The number of approximating terms per side, see {@linkplain Witness#countInstances(Term)}.
+     */
+    public Pair<BigInteger, BigInteger> countInstances() {
+        Pair<Witness, Witness> witnesses = witnesses();
+        return Pair.of(witnesses.left.countInstances(generalization), witnesses.right.countInstances(generalization));
     }
     
-    private Set<GroundTerm> enumerateSide(Map<Integer, Set<Term>> substitutions) {
-        List<Set<Substitution>> steps = substitutions.entrySet().stream()
-                .map(entry -> entry.getValue().stream()
-                        .map(term -> new Substitution(entry.getKey(), term))
-                        .collect(Collectors.toSet()))
-                .collect(Collectors.toList());
-        
-        Set<Term> generalization = Collections.singleton(this.generalization);
-        Set<Term> unchaste = Data.permute(generalization, steps, ((term, substitution) -> substitution.apply(term)));
-        return unchaste.stream().map(GroundTerm::force).collect(Collectors.toSet());
+    /**
+     * Draws <b>n</b> approximating terms per side, uniformly at random, see {@linkplain Witness#sample(Term, int, Random)}.
+     */
+    public Pair<List<GroundTerm>, List<GroundTerm>> sample(int n, Random rnd) {
+        Pair<Witness, Witness> witnesses = witnesses();
+        return Pair.of(witnesses.left.sample(generalization, n, rnd), witnesses.right.sample(generalization, n, rnd));
     }
     
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder().append(generalization);
-        if (lhs == null) {
-            sb.append(ANSI.red("  ∅")).append(ANSI.yellow("  α..", alpha1, alpha2));
+        // doesn't force lazy witnesses, since solutions are printed when they are logged
+        if (!hasWitnesses()) {
+            sb.append(ANSI.red(deferredWitnesses == null ? "  ∅" : "  …")).append(ANSI.yellow("  α..", alpha1, alpha2));
         } else {
             sb.append(ANSI.yellow("  LHS (α=" + alpha1 + ")..  "))
-                    .append(lhs)
+                    .append(witnesses().left)
                     .append(ANSI.yellow("  RHS (α=" + alpha2 + ")..  "))
-                    .append(rhs);
+                    .append(witnesses().right);
         }
         return sb.toString();
     }
@@ -0,0 +1,33 @@
+package at.jku.risc.aau;
+
+import at.jku.risc.aau.impl.Algorithm;
+
+/**
+ * How a run of the {@linkplain Algorithm} ended, see {@linkplain Algorithm#status()}.
+ * <br><br>
+ * Anything but {@linkplain Status#COMPLETE} means the run was stopped early, and only returned the solutions found so far.
+ * Solutions which couldn't be post-processed in time come without witnesses, and aren't merged.
+ */
+public enum Status {
+    COMPLETE,
+    /**
+     * {@linkplain Algorithm#cancel()} was called
+     */
+    CANCELLED,
+    /**
+     * see {@linkplain Problem#timeLimit(long)}
+     */
+    TIME_LIMIT,
+    /**
+     * see {@linkplain Problem#maxConfigs(long)}
+     */
+    MAX_CONFIGS,
+    /**
+     * see {@linkplain Problem#maxConjunctionBranches(long)}
+     */
+    MAX_CONJUNCTION_BRANCHES,
+    /**
+     * see {@linkplain Problem#maxHeap(long)}
+     */
+    MAX_HEAP
+}
@@ -1,27 +1,198 @@
 package at.jku.risc.aau;
 
+import at.jku.risc.aau.term.FunctionTerm;
+import at.jku.risc.aau.term.GroundTerm;
 import at.jku.risc.aau.term.Term;
+import at.jku.risc.aau.term.VariableTerm;
 import at.jku.risc.aau.util.ANSI;
 import at.jku.risc.aau.util.Data;
+import at.jku.risc.aau.util.Panic;
 
-import java.util.Collections;
-import java.util.Map;
-import java.util.Set;
+import java.math.BigInteger;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
  * See {@linkplain Solution}
+ * <br><br>
+ * The witness is kept factorized, as one set of alternatives per variable.
+ * Their combinations can be {@linkplain Witness#instances(Term) streamed} one at a time,
+ * since there may be far too many of them to hold in memory at once.
+ * <br><br>
+ * With {@linkplain WitnessPolicy#COUNT}, only the number of alternatives per variable is kept in {@linkplain Witness#sizes},
+ * and {@linkplain Witness#substitutions} is <b>null</b>.
  */
 public class Witness {
     public final Map<Integer, Set<Term>> substitutions;
+    public final Map<Integer, Integer> sizes;
     
     public Witness(Map<Integer, Set<Term>> substitutions) {
         this.substitutions = Collections.unmodifiableMap(substitutions);
+        this.sizes = null;
+    }
+    
+    private Witness(Map<Integer, Set<Term>> substitutions, Map<Integer, Integer> sizes) {
+        this.substitutions = substitutions;
+        this.sizes = Collections.unmodifiableMap(sizes);
+    }
+    
+    /**
+     * Witness which only knows the number of alternatives of each variable.
+     */
+    public static Witness counted(Map<Integer, Integer> sizes) {
+        return new Witness(null, sizes);
+    }
+    
+    /**
+     * The variables this witness substitutes.
+     */
+    public Set<Integer> variables() {
+        return substitutions != null ? substitutions.keySet() : sizes.keySet();
+    }
+    
+    /**
+     * Iterates over all terms you get by substituting each variable of <b>generalization</b> with one of its alternatives.
+     * <br>
+     * The alternatives are combined like the digits of an odometer, so each step only needs to rebuild the next term.
+     * Different combinations give different terms, so no term is produced twice.
+     */
+    public Iterator<GroundTerm> instances(Term generalization) {
+        return new Instances(generalization);
+    }
+    
+    /**
+     * The number of terms {@linkplain Witness#instances(Term)} produces, without producing them.
+     */
+    public BigInteger countInstances(Term generalization) {
+        BigInteger count = BigInteger.ONE;
+        for (int var : generalization.v_named()) {
+            count = count.multiply(BigInteger.valueOf(size(var)));
+        }
+        return count;
+    }
+    
+    /**
+     * Draws <b>n</b> of the terms {@linkplain Witness#instances(Term)} produces, independently and uniformly at random.
+     * <br>
+     * Each variable's alternative is drawn on its own, which is uniform over the terms since each combination gives a different term.
+     * After indexing the alternatives once, each draw only takes time proportional to the size of the term.
+     */
+    public List<GroundTerm> sample(Term generalization, int n, Random rnd) {
+        if (n < 0) {
+            throw Panic.arg("Can't draw %s samples", n);
+        }
+        Map<Integer, Term[]> indexed = new HashMap<>();
+        for (int var : generalization.v_named()) {
+            indexed.put(var, alternatives(var).toArray(new Term[0]));
+        }
+        if (n > 0 && Data.any(indexed.values(), alternatives -> alternatives.length == 0)) {
+            throw Panic.state("Can't sample from a witness without instances");
+        }
+        List<GroundTerm> samples = new ArrayList<>(n);
+        Map<Integer, Term> choice = new HashMap<>();
+        for (int idx = 0; idx < n; idx++) {
+            indexed.forEach((var, alternatives) -> choice.put(var, alternatives[rnd.nextInt(alternatives.length)]));
+            samples.add(instantiate(generalization, choice));
+        }
+        return samples;
+    }
+    
+    private int size(int var) {
+        if (substitutions != null) {
+            return alternatives(var).size();
+        }
+        Integer size = sizes.get(var);
+        if (size == null) {
+            throw Panic.arg("No witness substitutions for variable %s", var);
+        }
+        return size;
+    }
+    
+    private Set<Term> alternatives(int var) {
+        if (substitutions == null) {
+            throw Panic.state("Only the number of witness substitutions was kept");
+        }
+        Set<Term> alternatives = substitutions.get(var);
+        if (alternatives == null) {
+            throw Panic.arg("No witness substitutions for variable %s", var);
+        }
+        return alternatives;
+    }
+    
+    /**
+     * Substitutes each variable of <b>term</b> with its <b>choice</b>.
+     */
+    private static GroundTerm instantiate(Term term, Map<Integer, Term> choice) {
+        if (term instanceof VariableTerm) {
+            return GroundTerm.force(choice.get(((VariableTerm) term).var));
+        }
+        if (term instanceof GroundTerm) {
+            return (GroundTerm) term;
+        }
+        FunctionTerm functionTerm = (FunctionTerm) term;
+        return new GroundTerm(functionTerm.head, Data.mapToList(functionTerm.arguments, argument -> instantiate(argument, choice)));
+    }
+    
+    private class Instances implements Iterator<GroundTerm> {
+        private final Term generalization;
+        private final int[] vars;
+        private final List<Iterator<Term>> digits = new ArrayList<>();
+        private final Map<Integer, Term> current = new HashMap<>();
+        private boolean hasNext = true;
+        
+        Instances(Term generalization) {
+            this.generalization = generalization;
+            vars = generalization.v_named().stream().mapToInt(Integer::intValue).sorted().toArray();
+            for (int var : vars) {
+                Iterator<Term> digit = alternatives(var).iterator();
+                if (!digit.hasNext()) {
+                    hasNext = false;
+                    return;
+                }
+                current.put(var, digit.next());
+                digits.add(digit);
+            }
+        }
+        
+        @Override
+        public boolean hasNext() {
+            return hasNext;
+        }
+        
+        @Override
+        public GroundTerm next() {
+            if (!hasNext) {
+                throw new NoSuchElementException();
+            }
+            GroundTerm instance = instantiate(generalization, current);
+            advance();
+            return instance;
+        }
+        
+        private void advance() {
+            for (int idx = vars.length - 1; idx >= 0; idx--) {
+                if (digits.get(idx).hasNext()) {
+                    current.put(vars[idx], digits.get(idx).next());
+                    return;
+                }
+                // wrap around, and carry over to the next digit
+                Iterator<Term> digit = substitutions.get(vars[idx]).iterator();
+                current.put(vars[idx], digit.next());
+                digits.set(idx, digit);
+            }
+            hasNext = false;
+        }
     }
     
     @Override
     public String toString() {
+        if (substitutions == null) {
+            return Data.str(sizes.entrySet()
+                    .stream()
+                    .flatMap(entry -> Stream.of(ANSI.blue(entry.getKey()), "#" + entry.getValue()))
+                    .collect(Collectors.toList()));
+        }
         return Data.str(substitutions.entrySet()
                 .stream()
                 .flatMap(entry -> Stream.of(ANSI.blue(entry.getKey()), Data.str(entry.getValue())))
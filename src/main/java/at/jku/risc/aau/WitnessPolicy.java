@@ -0,0 +1,24 @@
+package at.jku.risc.aau;
+
+/**
+ * How much of the {@linkplain Witness} substitutions a {@linkplain Solution} keeps, see {@linkplain Problem#witnesses(WitnessPolicy)}.
+ */
+public enum WitnessPolicy {
+    /**
+     * every alternative of every variable
+     */
+    ALL,
+    /**
+     * only the alternatives which are closest to the terms they generalize,
+     * so their instances reach the highest proximity to the problem terms
+     */
+    BEST,
+    /**
+     * only the number of alternatives of each variable, see {@linkplain Solution#countInstances()}
+     */
+    COUNT,
+    /**
+     * no witnesses at all
+     */
+    NONE
+}
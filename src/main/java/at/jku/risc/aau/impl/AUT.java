@@ -3,15 +3,13 @@ package at.jku.risc.aau.impl;
 import at.jku.risc.aau.Witness;
 import at.jku.risc.aau.term.GroundTerm;
 import at.jku.risc.aau.term.Term;
+import at.jku.risc.aau.term.VariableTerm;
 import at.jku.risc.aau.util.ANSI;
 import at.jku.risc.aau.util.ArraySet;
 import at.jku.risc.aau.util.Pair;
 import at.jku.risc.aau.util.Data;
 
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Queue;
-import java.util.Set;
+import java.util.*;
 
 /**
  * {@linkplain AUT Anti-Unification Triples} are part of a {@linkplain Config Config's} description of a program state.
@@ -32,25 +30,75 @@ class AUT {
         this.T2 = T2;
     }
     
-    static Pair<Set<Term>, Set<Term>> substituteAll(Queue<AUT> auts, Term baseTerm) {
-        Pair<Set<Term>, Set<Term>> applied = Pair.of(new HashSet<>(), new HashSet<>());
-        applied.left.add(baseTerm);
-        applied.right.add(baseTerm);
-        
+    /**
+     * Builds the {@linkplain Witness} substitutions of the <b>variables</b> from the final <b>auts</b>, in a single pass.
+     * <br><br>
+     * Each variable is substituted by the terms of its AUT. The terms are ground, so no other AUT applies after that,
+     * and variables without an AUT are left as they are.
+     */
+    static Pair<Witness, Witness> witnesses(Collection<AUT> auts, Set<Integer> variables) {
+        Map<Integer, AUT> byVariable = byVariable(auts);
+        Map<Integer, Set<Term>> W1 = new HashMap<>();
+        Map<Integer, Set<Term>> W2 = new HashMap<>();
+        for (int var : variables) {
+            AUT aut = byVariable.get(var);
+            if (aut == null) {
+                Set<Term> unchanged = Collections.singleton(new VariableTerm(var));
+                W1.put(var, unchanged);
+                W2.put(var, unchanged);
+            } else {
+                W1.put(var, view(aut.T1));
+                W2.put(var, view(aut.T2));
+            }
+        }
+        return Pair.of(new Witness(W1), new Witness(W2));
+    }
+    
+    /**
+     * Like {@linkplain AUT#witnesses(Collection, Set)}, but only counts the substitutions of each variable.
+     */
+    static Pair<Witness, Witness> counts(Collection<AUT> auts, Set<Integer> variables) {
+        Map<Integer, AUT> byVariable = byVariable(auts);
+        Map<Integer, Integer> W1 = new HashMap<>();
+        Map<Integer, Integer> W2 = new HashMap<>();
+        for (int var : variables) {
+            AUT aut = byVariable.get(var);
+            W1.put(var, aut == null ? 1 : aut.T1.size());
+            W2.put(var, aut == null ? 1 : aut.T2.size());
+        }
+        return Pair.of(Witness.counted(W1), Witness.counted(W2));
+    }
+    
+    private static Map<Integer, AUT> byVariable(Collection<AUT> auts) {
+        Map<Integer, AUT> byVariable = new HashMap<>();
         for (AUT aut : auts) {
-            applied = aut.substitute(applied.left, applied.right);
+            // only the first AUT of a variable applies
+            byVariable.putIfAbsent(aut.variable, aut);
         }
-        return applied;
+        return byVariable;
     }
     
-    Pair<Set<Term>, Set<Term>> substitute(Set<Term> Q1, Set<Term> Q2) {
-        Set<Term> lhs = new HashSet<>();
-        Set<Term> rhs = new HashSet<>();
-        
-        Q1.forEach(q1 -> T1.forEach(t1 -> lhs.add(new Substitution(variable, t1).apply(q1))));
-        Q2.forEach(q2 -> T2.forEach(t2 -> rhs.add(new Substitution(variable, t2).apply(q2))));
-        
-        return Pair.of(Collections.unmodifiableSet(lhs), Collections.unmodifiableSet(rhs));
+    /**
+     * Read-only view of <b>terms</b>, which shares its elements instead of copying them.
+     * Unlike {@linkplain ArraySet} itself, it compares equal to any other set of the same elements.
+     */
+    private static Set<Term> view(ArraySet<GroundTerm> terms) {
+        return new AbstractSet<Term>() {
+            @Override
+            public Iterator<Term> iterator() {
+                return Collections.<Term>unmodifiableSet(terms).iterator();
+            }
+            
+            @Override
+            public boolean contains(Object o) {
+                return terms.contains(o);
+            }
+            
+            @Override
+            public int size() {
+                return terms.size();
+            }
+        };
     }
     
     @Override
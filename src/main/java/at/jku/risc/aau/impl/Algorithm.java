@@ -7,7 +7,17 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 // TODO is it okay to have ANON as a MappedVariableTerm?
 //  - I like being able to encode that AUTs and Expressions only contain GroundTerms + ANON
@@ -48,22 +58,113 @@ public class Algorithm {
         return new Algorithm(problem).run();
     }
     
+    /**
+     * Equivalent to calling {@linkplain Problem#solveSweep(float...)} on the {@linkplain Problem} itself.
+     */
+    public static SortedMap<Float, Set<Solution>> sweep(Problem problem, float... lambdas) {
+        return sweeping(problem, lambdas).sweep();
+    }
+    
+    /**
+     * Creates an {@linkplain Algorithm} which solves the {@linkplain Problem} for all <b>lambdas</b> at once
+     * via {@linkplain Algorithm#sweep()}, so its {@linkplain Algorithm#status()} can be checked afterwards,
+     * or it can be {@linkplain Algorithm#cancel() cancelled}.
+     */
+    public static Algorithm sweeping(Problem problem, float... lambdas) {
+        float[] sorted = lambdas.clone();
+        Arrays.sort(sorted);
+        int distinct = 0;
+        for (float lambda : sorted) {
+            if (distinct == 0 || sorted[distinct - 1] != lambda) {
+                sorted[distinct++] = lambda;
+            }
+        }
+        float[] cuts = Arrays.copyOf(sorted, distinct);
+        if (cuts.length == 0) {
+            throw Panic.arg("A λ-sweep needs at least one λ");
+        }
+        if (cuts.length > Long.SIZE) {
+            throw Panic.arg("A λ-sweep supports at most %d distinct λs", Long.SIZE);
+        }
+        return new Algorithm(problem, cuts[0], cuts, new Budget(), new TermBank());
+    }
+    
     // ^^^ api ^^^
     
     // *** implementation ***
     
     private final Logger log = LoggerFactory.getLogger(Algorithm.class);
     
+    /**
+     * Orders {@linkplain Config}s by their bound <b>min(α1, α2)</b>, highest first,
+     * and among equals, prefers those with fewer AUTs left to decompose.
+     */
+    private static final Comparator<Config> MOST_PROMISING = Comparator
+            .comparingDouble((Config cfg) -> -Math.min(cfg.alpha1, cfg.alpha2))
+            .thenComparingInt(cfg -> cfg.A.size());
+    
     private final GroundTerm lhs, rhs;
     private final FuzzySystem fuzzySystem;
+    // the same system, to look up symbols by id - unless the problem brings its own fuzzy system
+    private final PredefinedFuzzySystem symbols;
     private final TNorm tNorm;
     private final float lambda;
-    private final boolean doMerge, giveWitnesses;
+    private final boolean doMerge, giveWitnesses, lazyWitnesses;
+    private final WitnessPolicy witnessPolicy;
+    // BEST doesn't need the expanded sets, unless it gets them from merging anyway
+    private final boolean expandForWitnesses;
+    private final int expandWorkers, mergeWorkers;
+    private final boolean depthFirst;
+    private final int parallelism;
+    private final int beamWidth;
+    // set once the beam search is done, and only read afterwards (possibly by other threads)
+    private volatile boolean approximate = false;
+    
+    private final boolean memoize;
+    private final Map<SubSolution.Key, List<SubSolution>> memo = new HashMap<>();
+    private int memoHits = 0;
+    private final boolean factorize;
+    private int factorFallbacks = 0;
+    
+    private final boolean pruneDuplicates;
+    // only set while searching, see 'pruningDuplicates'
+    private volatile Duplicates duplicates = null;
+    private final AtomicInteger prunedBranches = new AtomicInteger();
+    
+    private final long timeLimit, maxConfigs, maxConjunctionBranches, maxHeap;
+    // shared with the algorithms of the λ-cuts, so they count against the same budgets
+    private final Budget budget;
+    // canonical terms of this run, shared with the algorithms of the λ-cuts - 'null' for the witness generator
+    private final TermBank bank;
+    
+    // shortcuts for restricted relations, see 'FuzzySystem.RestrictionType'
+    private final boolean skipConsistencyChecks, skipAnonFilter;
+    
+    private final ConjunctionCache conjunctionCache;
+    // bounded like the conjunction cache, and 'null' if that is disabled
+    private final Map<ArraySet<GroundTerm>, ArraySet<GroundTerm>> expansions;
+    // shared by the parallel streams outside of the algorithm's other pools during a run, see 'withParallelism'
+    private volatile ForkJoinPool pool = null;
+    
+    private final Problem problem;
+    // λ-sweep: cut 'idx' is at 'cuts[idx]', and post-processed by 'cutAlgorithms[idx]'
+    private final float[] cuts;
+    private final Algorithm[] cutAlgorithms;
+    // computes lazy witnesses after the run, see 'witnessGenerator'
+    private final Algorithm witnessGenerator;
     
     public Algorithm(Problem problem) {
-        lhs = problem.getEquation().left;
-        rhs = problem.getEquation().right;
-        lambda = problem.getLambda();
+        this(problem, problem.getLambda(), null, new Budget(), new TermBank());
+    }
+    
+    private Algorithm(Problem problem, float lambda, float[] cuts, Budget budget, TermBank bank) {
+        this.problem = problem;
+        this.budget = budget;
+        this.bank = bank;
+        // equal sub-terms become the same object, see 'TermBank' (arena views are left as they are)
+        lhs = bank.internAll(problem.getEquation().left);
+        rhs = bank.internAll(problem.getEquation().right);
+        this.lambda = lambda;
         if (lambda < 0.0f || lambda > 1.0f) {
             throw Panic.arg("Lambda must be in range [0,1]");
         }
@@ -72,16 +173,526 @@ public class Algorithm {
         }
         if (problem.getCustomFuzzySystem() != null) {
             fuzzySystem = problem.getCustomFuzzySystem();
+            symbols = null;
         } else {
-            fuzzySystem = new PredefinedFuzzySystem(lhs, rhs, problem.getDefinedArities(), problem.getProximityRelations(), lambda);
+            symbols = new PredefinedFuzzySystem(lhs, rhs, problem.getDefinedArities(), problem.getProximityRelations(), lambda);
+            fuzzySystem = symbols;
         }
         tNorm = problem.getTNorm();
+        FuzzySystem.RestrictionType restrictionType = fuzzySystem.practicalRestrictionType();
+        // mapping relations can't map a consistent set of terms to inconsistent arguments
+        skipConsistencyChecks = restrictionType.mapping;
+        // correspondence relations have no irrelevant positions, so ANON never comes up unless the problem itself contains it
+        skipAnonFilter = restrictionType.correspondence && !containsAnon(lhs) && !containsAnon(rhs);
+        conjunctionCache = problem.getConjunctionCacheSize() > 0 ? new ConjunctionCache(problem.getConjunctionCacheSize()) : null;
+        expansions = problem.getConjunctionCacheSize() > 0 ? ConjunctionCache.lru(problem.getConjunctionCacheSize()) : null;
         doMerge = problem.wantsMerge();
-        giveWitnesses = problem.wantsWitnesses();
+        witnessPolicy = problem.getWitnessPolicy();
+        giveWitnesses = witnessPolicy != WitnessPolicy.NONE;
+        lazyWitnesses = giveWitnesses && problem.wantsLazyWitnesses();
+        expandForWitnesses = (witnessPolicy == WitnessPolicy.ALL || witnessPolicy == WitnessPolicy.COUNT) && !lazyWitnesses;
+        expandWorkers = problem.getExpandWorkers();
+        mergeWorkers = problem.getMergeWorkers();
+        depthFirst = problem.wantsDepthFirst();
+        parallelism = problem.getParallelism();
+        beamWidth = problem.getBeamWidth();
+        memoize = problem.wantsMemoize() || problem.wantsFactorize();
+        factorize = problem.wantsFactorize();
+        pruneDuplicates = problem.wantsPruneDuplicates();
+        timeLimit = problem.getTimeLimit();
+        maxConfigs = problem.getMaxConfigs();
+        maxConjunctionBranches = problem.getMaxConjunctionBranches();
+        maxHeap = problem.getMaxHeap();
+        this.cuts = cuts;
+        if (cuts != null) {
+            cutAlgorithms = new Algorithm[cuts.length];
+            cutAlgorithms[0] = this;
+            for (int idx = 1; idx < cuts.length; idx++) {
+                cutAlgorithms[idx] = new Algorithm(problem, cuts[idx], null, budget, bank);
+            }
+        } else {
+            cutAlgorithms = null;
+        }
+        witnessGenerator = lazyWitnesses ? new Algorithm(fuzzySystem, symbols, tNorm, lambda, witnessPolicy, skipAnonFilter) : null;
+    }
+    
+    /**
+     * Generates lazy witnesses (see {@linkplain Problem#lazyWitnesses(boolean)}) once the run is over.
+     * <br>
+     * It only holds on to the fuzzy system and the settings which the witnesses depend on, not the problem,
+     * the memo, the caches, the term bank or the pool of the run. It runs sequentially, without budgets and without caches.
+     */
+    private Algorithm(FuzzySystem fuzzySystem, PredefinedFuzzySystem symbols, TNorm tNorm, float lambda,
+                      WitnessPolicy witnessPolicy, boolean skipAnonFilter) {
+        this.problem = null;
+        this.budget = new Budget();
+        bank = null;
+        lhs = null;
+        rhs = null;
+        this.lambda = lambda;
+        this.fuzzySystem = fuzzySystem;
+        this.symbols = symbols;
+        this.tNorm = tNorm;
+        skipConsistencyChecks = false;
+        this.skipAnonFilter = skipAnonFilter;
+        conjunctionCache = null;
+        expansions = null;
+        doMerge = false;
+        this.witnessPolicy = witnessPolicy;
+        giveWitnesses = true;
+        lazyWitnesses = false;
+        expandForWitnesses = false;
+        expandWorkers = 0;
+        mergeWorkers = 0;
+        depthFirst = false;
+        parallelism = 1;
+        beamWidth = 0;
+        memoize = false;
+        factorize = false;
+        pruneDuplicates = false;
+        timeLimit = 0;
+        maxConfigs = 0;
+        maxConjunctionBranches = 0;
+        maxHeap = 0;
+        cuts = null;
+        cutAlgorithms = null;
+        witnessGenerator = null;
     }
     
     // TODO document
     public Set<Solution> run() {
+        begin();
+        try {
+            return runPhases();
+        } finally {
+            shutdownPool();
+        }
+    }
+    
+    private Set<Solution> runPhases() {
+        // *** APPLY RULES ***
+        if (depthFirst && beamWidth == 0) {
+            Set<Solution> solutions = parallelism > 1 ? ConcurrentHashMap.newKeySet() : new HashSet<>();
+            try {
+                search(cfg -> solutions.add(postProcessWithinBudget(cfg)));
+            } catch (BudgetExceeded e) {
+                log.warn("Stopped early ({}), returning the solutions found so far", budget.status);
+            }
+            return logSolutions(solutions);
+        }
+        
+        if (expandWorkers > 0 && (doMerge || expandForWitnesses)) {
+            return logSolutions(runPipeline());
+        }
+        
+        Queue<Config> linearConfigs = parallelism > 1 ? new ConcurrentLinkedQueue<>() : new ArrayDeque<>();
+        try {
+            search(linearConfigs::add);
+        } catch (BudgetExceeded e) {
+            log.warn("Stopped early ({}), returning the solutions found so far", budget.status);
+            return generateSolutions(linearConfigs, false);
+        }
+        
+        assert Data.isSet(linearConfigs);
+        try {
+            return postProcess(linearConfigs);
+        } catch (BudgetExceeded e) {
+            log.warn("Stopped early ({}), returning the solutions without post-processing", budget.status);
+            return generateSolutions(linearConfigs, false);
+        }
+    }
+    
+    private Set<Solution> postProcess(Queue<Config> linearConfigs) {
+        if (!doMerge && !expandForWitnesses) {
+            return generateSolutions(linearConfigs, giveWitnesses);
+        }
+        
+        // *** POST PROCESS ***
+        log.info(Data.log(ANSI.yellow("LINEAR:"), linearConfigs));
+        
+        // EXPAND
+        Queue<Config> expandedConfigs = mapConfigs(linearConfigs, this::expand);
+        assert Data.isSet(expandedConfigs);
+        if (!doMerge) {
+            return generateSolutions(expandedConfigs, giveWitnesses);
+        }
+        log.info(Data.log(ANSI.yellow("EXPANDED:"), expandedConfigs));
+        
+        // MERGE
+        Queue<Config> mergedConfigs = mapConfigs(expandedConfigs, this::merge);
+        assert Data.isSet(mergedConfigs);
+        return generateSolutions(mergedConfigs, giveWitnesses);
+    }
+    
+    // *** pipeline ***
+    
+    private static final int PIPELINE_CAPACITY = 256;
+    // marks the end of a stage's input, one per worker
+    private static final Config END = new Config(VariableTerm.VAR_0, Collections.emptyList(), 0.0f, 0.0f, 1);
+    
+    /**
+     * Runs the search and the post-processing phases as concurrent stages, see {@linkplain Problem#pipeline(int, int)}.
+     * <br>
+     * If the budget runs out, each config is turned into its {@linkplain Solution} with whatever post-processing it got so far.
+     */
+    private Set<Solution> runPipeline() {
+        Set<Solution> solutions = ConcurrentHashMap.newKeySet();
+        BlockingQueue<Config> linearConfigs = new ArrayBlockingQueue<>(PIPELINE_CAPACITY);
+        BlockingQueue<Config> expandedConfigs = new ArrayBlockingQueue<>(PIPELINE_CAPACITY);
+        int mergers = doMerge ? mergeWorkers : 0;
+        ExecutorService workers = Executors.newFixedThreadPool(expandWorkers + mergers);
+        List<Future<?>> stages = new ArrayList<>();
+        try {
+            // EXPAND
+            AtomicInteger expanding = new AtomicInteger(expandWorkers);
+            for (int idx = 0; idx < expandWorkers; idx++) {
+                stages.add(workers.submit(() -> {
+                    try {
+                        drain(linearConfigs, linearCfg -> {
+                            Config cfg = expand(linearCfg);
+                            if (doMerge) {
+                                put(expandedConfigs, cfg);
+                            } else {
+                                solutions.add(generateSolution(cfg));
+                            }
+                        }, linearCfg -> solutions.add(generateSolution(linearCfg, false)));
+                    } finally {
+                        if (expanding.decrementAndGet() == 0) {
+                            end(expandedConfigs, mergers);
+                        }
+                    }
+                }));
+            }
+            // MERGE
+            for (int idx = 0; idx < mergers; idx++) {
+                stages.add(workers.submit(() -> drain(expandedConfigs,
+                        cfg -> solutions.add(generateSolution(merge(cfg))),
+                        cfg -> solutions.add(generateSolution(cfg, false)))));
+            }
+            // APPLY RULES
+            try {
+                search(linearCfg -> put(linearConfigs, linearCfg));
+            } catch (BudgetExceeded e) {
+                // the stages notice as well, and fall back to unprocessed solutions
+            } finally {
+                end(linearConfigs, expandWorkers);
+            }
+            for (Future<?> stage : stages) {
+                stage.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Panic.state("Interrupted while post-processing");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw Panic.state("Post-processing failed: %s", e.getCause());
+        } finally {
+            workers.shutdownNow();
+        }
+        if (budget.status != Status.COMPLETE) {
+            log.warn("Stopped early ({}), returning the solutions found so far", budget.status);
+        }
+        return solutions;
+    }
+    
+    /**
+     * Hands each config from <b>in</b> to <b>stage</b>, until the stage's {@linkplain Algorithm#END}.
+     * Once the budget runs out, configs go to <b>fallback</b> instead.
+     * <br>
+     * If <b>stage</b> fails, even with an {@linkplain Error}, the remaining configs are still taken from <b>in</b>,
+     * so the stages before don't block. The failure is rethrown at the end.
+     */
+    private void drain(BlockingQueue<Config> in, Consumer<Config> stage, Consumer<Config> fallback) {
+        Throwable failure = null;
+        for (Config cfg = take(in); cfg != END; cfg = take(in)) {
+            if (failure != null) {
+                continue;
+            }
+            try {
+                try {
+                    stage.accept(cfg);
+                } catch (BudgetExceeded e) {
+                    fallback.accept(cfg);
+                }
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+        if (failure != null) {
+            throw Panic.state("Post-processing failed: %s", failure);
+        }
+    }
+    
+    private static void end(BlockingQueue<Config> queue, int workers) {
+        for (int idx = 0; idx < workers; idx++) {
+            put(queue, END);
+        }
+    }
+    
+    private static void put(BlockingQueue<Config> queue, Config cfg) {
+        try {
+            queue.put(cfg);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Panic.state("Interrupted while waiting for the next pipeline stage");
+        }
+    }
+    
+    private static Config take(BlockingQueue<Config> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw Panic.state("Interrupted while waiting for the previous pipeline stage");
+        }
+    }
+    
+    /**
+     * Lazily produces the {@linkplain Solution}s, exploring only as many branches as needed to find the next one.
+     * <br>
+     * Branches are explored depth-first on the calling thread, regardless of the problem's parallelism.
+     */
+    public Iterator<Solution> iterator() {
+        begin();
+        Iterator<Config> linearConfigs = new DepthFirst(new Config(lhs, rhs));
+        return new Iterator<Solution>() {
+            @Override
+            public boolean hasNext() {
+                boolean hasNext;
+                try {
+                    hasNext = linearConfigs.hasNext();
+                } catch (BudgetExceeded e) {
+                    log.warn("Stopped early ({})", budget.status);
+                    hasNext = false;
+                }
+                if (!hasNext) {
+                    shutdownPool();
+                }
+                return hasNext;
+            }
+            
+            @Override
+            public Solution next() {
+                Config linearCfg;
+                try {
+                    linearCfg = linearConfigs.next();
+                } catch (BudgetExceeded e) {
+                    log.warn("Stopped early ({})", budget.status);
+                    throw new NoSuchElementException("Stopped early (" + budget.status + ")");
+                }
+                Solution solution = postProcessWithinBudget(linearCfg);
+                log.debug("SOLUTION => {}", solution);
+                return solution;
+            }
+        };
+    }
+    
+    /**
+     * Finds the <b>k</b> {@linkplain Solution}s with the highest <b>min(α1, α2)</b>, best first.
+     * <br><br>
+     * Rules never increase the proximities of a {@linkplain Config}, so its current proximities bound those of all its descendants.
+     * Exploring the branch with the highest bound first, the first linear {@linkplain Config}s found are therefore the best ones,
+     * and every branch below the <b>k</b>-th best solution is never explored.
+     * <br>
+     * Among solutions of equal proximity, which ones are returned is unspecified.
+     */
+    public List<Solution> topK(int k) {
+        begin();
+        PriorityQueue<Config> branches = new PriorityQueue<>(MOST_PROMISING);
+        branches.add(new Config(lhs, rhs));
+        Set<Solution> solutions = new LinkedHashSet<>();
+        try {
+            while (solutions.size() < k && !branches.isEmpty()) {
+                Config cfg = branches.poll();
+                Deque<Config> children = step(cfg);
+                if (children == null) {
+                    solutions.add(postProcessWithinBudget(cfg));
+                } else {
+                    branches.addAll(children);
+                }
+            }
+        } catch (BudgetExceeded e) {
+            log.warn("Stopped early ({}), returning the best solutions found so far", budget.status);
+        } finally {
+            shutdownPool();
+        }
+        log.info("Left {} branches unexplored", branches.size());
+        return new ArrayList<>(logSolutions(solutions));
+    }
+    
+    /**
+     * Solves the problem for every λ-cut at once, exploring the branches only once at the lowest cut.
+     * <br><br>
+     * Each branch is tagged with the cuts it is valid for:
+     * <ul>
+     *     <li> proximities only decrease along a branch, so a decomposition is valid at all cuts up to its proximity
+     *     <li> consistency is checked at each cut, with that cut's fuzzy system
+     *     <li> where no decomposition of an AUT is valid at some cuts, an additional SOL branch covers those cuts
+     * </ul>
+     * Each linear {@linkplain Config} is then post-processed once per cut it is valid for, by that cut's own {@linkplain Algorithm}.
+     * All cuts count against the same budgets.
+     * <br><br>
+     * Only available for {@linkplain Algorithm}s created via {@linkplain Algorithm#sweeping(Problem, float...)}.
+     */
+    public SortedMap<Float, Set<Solution>> sweep() {
+        if (cuts == null) {
+            throw Panic.state("Only an Algorithm created via 'Algorithm.sweeping' can solve a λ-sweep");
+        }
+        begin();
+        List<Set<Solution>> solutions = Data.list(cuts.length, idx -> parallelism > 1 ? ConcurrentHashMap.newKeySet() : new HashSet<>());
+        Consumer<Config> linear = cfg -> {
+            for (int idx = 0; idx < cuts.length; idx++) {
+                if ((cfg.cuts & 1L << idx) != 0L) {
+                    solutions.get(idx).add(cutAlgorithms[idx].postProcessWithinBudget(cfg.copy()));
+                }
+            }
+        };
+        Config root = new Config(lhs, rhs);
+        root.cuts = cuts.length == Long.SIZE ? ~0L : (1L << cuts.length) - 1;
+        try {
+            pruningDuplicates(linear, pruned -> {
+                if (parallelism > 1) {
+                    searchParallel(root, pruned);
+                } else {
+                    searchDepthFirst(root, pruned);
+                }
+            });
+        } catch (BudgetExceeded e) {
+            log.warn("Stopped early ({}), returning the solutions found so far", budget.status);
+        } finally {
+            for (Algorithm cutAlgorithm : cutAlgorithms) {
+                cutAlgorithm.shutdownPool();
+            }
+        }
+        SortedMap<Float, Set<Solution>> sweep = new TreeMap<>();
+        for (int idx = 0; idx < cuts.length; idx++) {
+            log.info(Data.log(ANSI.yellow("SOLUTIONS (λ=" + cuts[idx] + "):"), solutions.get(idx)));
+            sweep.put(cuts[idx], solutions.get(idx));
+        }
+        log.info("██");
+        return sweep;
+    }
+    
+    /**
+     * The highest λ for which the problem has a non-trivial solution, i.e. one whose generalization isn't just a variable.
+     * <br><br>
+     * That is the case exactly as long as some decomposition of the root AUT is valid,
+     * so this only needs to check the decompositions of the root, at the cuts where their validity may change:
+     * at their proximity, and at the proximities of the relations, since those decide which relations the consistency check uses.
+     *
+     * If the budget runs out, this returns the highest λ found so far.
+     *
+     * @return the highest such λ, or <b>0</b> if there is none, even at the problem's λ
+     */
+    public float maxNonTrivialLambda() {
+        startBudget();
+        ArraySet<GroundTerm> T1 = ArraySet.singleton(lhs);
+        ArraySet<GroundTerm> T2 = ArraySet.singleton(rhs);
+        SortedSet<Float> proximities = new TreeSet<>(Comparator.reverseOrder());
+        for (ProximityRelation relation : problem.getProximityRelations()) {
+            proximities.add(relation.proximity);
+        }
+        float best = 0.0f;
+        try {
+            for (String h : fuzzySystem.commonProximates(ArraySet.merged(T1, T2))) {
+                Pair<List<ArraySet<GroundTerm>>, Float> T1Mapped = mapArgs(h, T1, ids(T1), 1.0f);
+                Pair<List<ArraySet<GroundTerm>>, Float> T2Mapped = mapArgs(h, T2, ids(T2), 1.0f);
+                float upper = Math.min(T1Mapped.right, T2Mapped.right);
+                if (upper < lambda || upper <= best) {
+                    continue;
+                }
+                SortedSet<Float> candidates = new TreeSet<>(proximities.tailSet(upper));
+                candidates.add(upper);
+                for (float candidate : candidates) {
+                    if (candidate <= best || candidate < lambda) {
+                        break;
+                    }
+                    Algorithm cut = candidate == lambda ? this : new Algorithm(problem, candidate, null, budget, bank);
+                    if (cut.consistent(T1Mapped.left, T2Mapped.left)) {
+                        best = candidate;
+                        break;
+                    }
+                }
+            }
+        } catch (BudgetExceeded e) {
+            log.warn("Stopped early ({}), returning the highest λ found so far", budget.status);
+        }
+        return best;
+    }
+    
+    /**
+     * The number of special conjunctions and consistency checks which were answered by the cache.
+     * <br>
+     * (See {@linkplain Problem#conjunctionCacheSize(int)}.)
+     */
+    public long conjunctionCacheHits() {
+        return conjunctionCache == null ? 0 : conjunctionCache.hits();
+    }
+    
+    /**
+     * The number of special conjunctions and consistency checks which had to be computed, despite the cache.
+     */
+    public long conjunctionCacheMisses() {
+        return conjunctionCache == null ? 0 : conjunctionCache.misses();
+    }
+    
+    /**
+     * The number of branches which were pruned as duplicates of already explored branches, i.e. whose remaining work is the same
+     * up to variable renaming.
+     * <br>
+     * (Only counted if {@linkplain Problem#pruneDuplicates(boolean)} is enabled.)
+     */
+    public int prunedBranches() {
+        return prunedBranches.get();
+    }
+    
+    /**
+     * How the last run ended, i.e. {@linkplain Status#COMPLETE} or the budget which stopped it early.
+     */
+    public Status status() {
+        return budget.status;
+    }
+    
+    /**
+     * Stops the run as soon as possible, which then returns the solutions found so far.
+     * <br>
+     * Can be called from any thread. Cancelling is final: if the run hasn't started yet, or runs again, it stops right away.
+     */
+    public void cancel() {
+        stop(Status.CANCELLED);
+    }
+    
+    private void begin() {
+        startBudget();
+        logProblem();
+    }
+    
+    /**
+     * Resets the budgets for a new run (unless it was {@linkplain Algorithm#cancel() cancelled}).
+     */
+    private void startBudget() {
+        synchronized (budget) {
+            if (budget.status != Status.CANCELLED) {
+                budget.status = Status.COMPLETE;
+            }
+            budget.configs.set(0);
+            budget.conjunctionBranches.set(0);
+            budget.deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1_000_000 : Long.MAX_VALUE;
+        }
+    }
+    
+    private void logProblem() {
         log.info(ANSI.yellow("SOLVING: ") + lhs + ANSI.yellow(" == ") + rhs + ANSI.yellow(" λ=", lambda));
         
         if (log.isDebugEnabled()) {
@@ -100,166 +711,801 @@ public class Algorithm {
         log.info(fuzzySystem.practicalRestrictionType().correspondence ?
                 "Therefore, we get the minimal complete set of generalizations." :
                 "Therefore, we are not guaranteed to get the minimal complete set of generalizations.");
-        
-        // *** APPLY RULES ***
-        Queue<Config> linearConfigs = new ArrayDeque<>();
+    }
+    
+    /**
+     * Explores all branches, and hands each linear {@linkplain Config} to <b>linear</b> as soon as it is found.
+     * <br>
+     * With <b>parallelism > 1</b>, <b>linear</b> is called concurrently.
+     */
+    private void search(Consumer<Config> linear) {
+        if (beamWidth > 0) {
+            searchBeam(new Config(lhs, rhs), linear);
+            return;
+        }
+        if (memoize) {
+            if (depthFirst || parallelism > 1 || pruneDuplicates) {
+                log.warn("Memoized solving explores the sub-problems one after another on the calling thread, "
+                        + "so it ignores the depth-first, parallelism and prune duplicates settings");
+            }
+            List<SubSolution> solutions;
+            // the memo only holds for one run, so it doesn't keep the sub-problems alive afterwards
+            memoHits = 0;
+            factorFallbacks = 0;
+            try {
+                solutions = solveAUT(ArraySet.singleton(lhs), ArraySet.singleton(rhs), 1.0f, 1.0f);
+                log.info("Solved {} distinct sub-problems, with {} memoized reuses", memo.size(), memoHits);
+            } finally {
+                memo.clear();
+            }
+            if (factorize) {
+                log.info("Solved {} decompositions in context, since their factorized solutions fell below λ", factorFallbacks);
+            }
+            solutions.forEach(solution -> linear.accept(solution.toLinearConfig()));
+            return;
+        }
+        Config root = new Config(lhs, rhs);
+        pruningDuplicates(linear, pruned -> {
+            if (parallelism > 1) {
+                searchParallel(root, pruned);
+            } else if (depthFirst) {
+                searchDepthFirst(root, pruned);
+            } else {
+                searchBreadthFirst(root, pruned);
+            }
+        });
+    }
+    
+    /**
+     * Runs <b>search</b>, which {@linkplain Duplicates prunes duplicate branches} if {@linkplain Problem#pruneDuplicates(boolean) enabled}.
+     * <br>
+     * The linear {@linkplain Config}s of the pruned branches are handed to <b>linear</b> once the search is done.
+     */
+    private void pruningDuplicates(Consumer<Config> linear, Consumer<Consumer<Config>> search) {
+        if (!pruneDuplicates) {
+            search.accept(linear);
+            return;
+        }
+        Duplicates duplicates = new Duplicates();
+        this.duplicates = duplicates;
+        try {
+            search.accept(cfg -> {
+                duplicates.linear(cfg);
+                linear.accept(cfg);
+            });
+        } finally {
+            this.duplicates = null;
+        }
+        List<Config> grafted = duplicates.grafted();
+        log.info("Pruned {} duplicate branches, which add {} linear configs", prunedBranches.get(), grafted.size());
+        grafted.forEach(linear);
+    }
+    
+    /**
+     * Explores all branches breadth-first on the calling thread.
+     */
+    private void searchBreadthFirst(Config root, Consumer<Config> linear) {
         Queue<Config> branches = new ArrayDeque<>();
-        branches.add(new Config(lhs, rhs));
+        branches.add(root);
         
-        BRANCHING:
         while (!branches.isEmpty()) {
             assert Data.isSet(branches);
             Config cfg = branches.remove();
-            while (!cfg.A.isEmpty()) {
-                AUT aut = cfg.A.remove();
-                // TRIVIAL
-                if (aut.T1.isEmpty() && aut.T2.isEmpty()) {
-                    cfg.substitutions.add(new Substitution(aut.variable, MappedVariableTerm.ANON));
-                    log.debug("TRI => {}", cfg);
+            Queue<Config> children = step(cfg);
+            if (children == null) {
+                linear.accept(cfg);
+            } else {
+                branches.addAll(children);
+            }
+        }
+    }
+    
+    /**
+     * Explores all branches depth-first on the calling thread.
+     */
+    private void searchDepthFirst(Config root, Consumer<Config> linear) {
+        new DepthFirst(root).forEachRemaining(linear);
+    }
+    
+    /**
+     * Lazily explores the branches depth-first, and produces each linear {@linkplain Config} as soon as it is found.
+     * <br>
+     * Only the siblings along the current path are kept, so memory grows with the depth of the search, rather than its width.
+     */
+    private class DepthFirst implements Iterator<Config> {
+        private final Deque<Config> branches = new ArrayDeque<>();
+        private Config next = null;
+        
+        DepthFirst(Config root) {
+            branches.push(root);
+        }
+        
+        @Override
+        public boolean hasNext() {
+            while (next == null && !branches.isEmpty()) {
+                Config cfg = branches.pop();
+                Deque<Config> children = step(cfg);
+                if (children == null) {
+                    next = cfg;
+                } else {
+                    // push in reverse, so children are explored in the order they were created
+                    children.descendingIterator().forEachRemaining(branches::push);
+                }
+            }
+            return next != null;
+        }
+        
+        @Override
+        public Config next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Config cfg = next;
+            next = null;
+            return cfg;
+        }
+    }
+    
+    /**
+     * Explores the branches level by level, but only keeps the {@linkplain Algorithm#MOST_PROMISING most promising}
+     * <b>beamWidth</b> branches of each level.
+     * <br>
+     * This bounds the work per level, at the cost of missing the solutions of all dropped branches.
+     * <br>
+     * Whether any branch gets dropped is only known at the end, so the linear {@linkplain Config}s are handed to <b>linear</b>
+     * once the search is done (or stopped early).
+     */
+    private void searchBeam(Config root, Consumer<Config> linear) {
+        List<Config> found = new ArrayList<>();
+        int dropped = 0;
+        try {
+            List<Config> beam = Collections.singletonList(root);
+            while (!beam.isEmpty()) {
+                List<Config> next = new ArrayList<>();
+                for (Config cfg : beam) {
+                    Deque<Config> children = step(cfg);
+                    if (children == null) {
+                        found.add(cfg);
+                    } else {
+                        next.addAll(children);
+                    }
+                }
+                if (next.size() > beamWidth) {
+                    next.sort(MOST_PROMISING);
+                    dropped += next.size() - beamWidth;
+                    next = new ArrayList<>(next.subList(0, beamWidth));
+                }
+                beam = next;
+            }
+        } finally {
+            approximate = dropped > 0;
+            log.info("Dropped {} branches outside the beam", dropped);
+            found.forEach(linear);
+        }
+    }
+    
+    /**
+     * Explores all branches concurrently, with each child {@linkplain Config} forked as its own {@linkplain Branch task}.
+     */
+    private void searchParallel(Config root, Consumer<Config> linear) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new Branch(root, linear));
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    private class Branch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        
+        private final Config cfg;
+        private final Consumer<Config> linear;
+        
+        Branch(Config cfg, Consumer<Config> linear) {
+            this.cfg = cfg;
+            this.linear = linear;
+        }
+        
+        @Override
+        protected void compute() {
+            List<Branch> forked = new ArrayList<>();
+            Config current = cfg;
+            while (true) {
+                Queue<Config> children = step(current);
+                if (children == null) {
+                    linear.accept(current);
+                    break;
+                }
+                if (children.isEmpty()) {
+                    break;
+                }
+                // keep working on one child, and leave the rest up for stealing
+                current = children.remove();
+                for (Config child : children) {
+                    Branch branch = new Branch(child, linear);
+                    branch.fork();
+                    forked.add(branch);
+                }
+            }
+            forked.forEach(Branch::join);
+        }
+    }
+    
+    /**
+     * Applies rules to <b>cfg</b> until it either branches, or is linear (i.e. has no AUTs left in {@linkplain Config#A}).
+     *
+     * @return the children of <b>cfg</b>, or <b>null</b> if <b>cfg</b> is linear
+     * (if all children were {@linkplain Problem#pruneDuplicates(boolean) pruned}, the queue is empty)
+     */
+    private Deque<Config> step(Config cfg) {
+        checkBudget(budget.configs, maxConfigs, Status.MAX_CONFIGS);
+        while (!cfg.A.isEmpty()) {
+            AUT aut = cfg.A.head();
+            cfg.A = cfg.A.tail();
+            // TRIVIAL
+            if (aut.T1.isEmpty() && aut.T2.isEmpty()) {
+                cfg.substitutions = cfg.substitutions.append(new Substitution(aut.variable, MappedVariableTerm.ANON));
+                log.debug("TRI => {}", cfg);
+                continue;
+            }
+            // DECOMPOSE
+            Deque<Config> children = decompose(aut, cfg);
+            if (!children.isEmpty()) {
+                if (log.isDebugEnabled()) {
+                    log.debug("DEC => {}", Data.str(children));
+                }
+                if (cuts != null) {
+                    // at the λ-cuts where no decomposition is valid, SOL applies instead
+                    long solCuts = cfg.cuts;
+                    for (Config child : children) {
+                        solCuts &= ~child.cuts;
+                    }
+                    if (solCuts != 0L) {
+                        Config solved = cfg.copy();
+                        solved.cuts = solCuts;
+                        solved.S = solved.S.append(aut);
+                        log.debug("SOL => {}", solved);
+                        children.add(solved);
+                    }
+                }
+                Duplicates duplicates = this.duplicates;
+                if (duplicates != null) {
+                    children.removeIf(child -> {
+                        if (!duplicates.prune(child)) {
+                            return false;
+                        }
+                        prunedBranches.incrementAndGet();
+                        log.debug("PRUNED => {}", child);
+                        return true;
+                    });
+                }
+                return children;
+            }
+            // SOLVE
+            cfg.S = cfg.S.append(aut);
+            log.debug("SOL => {}", cfg);
+        }
+        return null;
+    }
+    
+    // TODO document
+    private Deque<Config> decompose(AUT aut, Config cfg) {
+        Deque<Config> children = new ArrayDeque<>();
+        ArraySet<GroundTerm> merged = ArraySet.merged(aut.T1, aut.T2);
+        ArraySet<String> commonProximates = fuzzySystem.commonProximates(merged);
+        
+        if (commonProximates.size() == 1 && Data.any(merged, term -> term instanceof MappedVariableTerm)) {
+            // special case: MappedVariableTerm as common proximate
+            assert merged.size() == 1;
+            cfg.substitutions = cfg.substitutions.append(new Substitution(aut.variable, Data.getAny(merged)));
+            children.add(cfg);
+            return children;
+        }
+        
+        int[] T1Ids = ids(aut.T1), T2Ids = ids(aut.T2);
+        for (String h : commonProximates) {
+            // map arguments
+            Pair<List<ArraySet<GroundTerm>>, Float> T1Mapped = mapArgs(h, aut.T1, T1Ids, cfg.alpha1);
+            List<ArraySet<GroundTerm>> Q1 = T1Mapped.left;
+            float alpha1 = T1Mapped.right;
+            if (alpha1 < lambda) {
+                continue;
+            }
+            Pair<List<ArraySet<GroundTerm>>, Float> T2Mapped = mapArgs(h, aut.T2, T2Ids, cfg.alpha2);
+            List<ArraySet<GroundTerm>> Q2 = T2Mapped.left;
+            float alpha2 = T2Mapped.right;
+            if (alpha2 < lambda) {
+                continue;
+            }
+            assert Q1 != null && Q2 != null;
+            long validCuts = cfg.cuts;
+            if (cuts != null) {
+                validCuts = consistentCuts(Q1, Q2, validCuts & cutsUpTo(Math.min(alpha1, alpha2)));
+                if (validCuts == 0L) {
                     continue;
                 }
-                // DECOMPOSE
-                Queue<Config> children = decompose(aut, cfg);
-                if (!children.isEmpty()) {
-                    branches.addAll(children);
-                    if (log.isDebugEnabled()) {
-                        log.debug("DEC => {}", Data.str(children));
+            } else if (!consistent(Q1, Q2)) {
+                continue;
+            }
+            // apply DEC
+            Config child = commonProximates.size() == 1 && cuts == null ? cfg : cfg.copy();
+            child.cuts = validCuts;
+            child.alpha1 = alpha1;
+            child.alpha2 = alpha2;
+            List<Term> hArgs = Data.list(Q1.size(), idx -> {
+                int yi = child.freshVar();
+                child.A = child.A.append(new AUT(yi, Q1.get(idx), Q2.get(idx)));
+                return new VariableTerm(yi);
+            });
+            child.substitutions = child.substitutions.append(new Substitution(aut.variable, new FunctionTerm(h, hArgs)));
+            children.add(child);
+        }
+        return children;
+    }
+    
+    // *** memoized solving ***
+    
+    /**
+     * Solves the AUT <b>T1</b> ?= <b>T2</b> on its own (i.e. the AUT and all its descendants are fully generalized),
+     * in the context of the proximities <b>alpha1</b> and <b>alpha2</b> reached so far.
+     * <br><br>
+     * The same AUT often reappears in many branches, so the results are memoized, and only need to be
+     * {@linkplain SubSolution#shifted(int) renamed} when reused.
+     * <br>
+     * This effectively applies the same rules as {@linkplain Algorithm#step(Config)}, but fully generalizes each AUT before moving
+     * on to its siblings. With the default {@linkplain Problem#tNorm(TNorm) t-norm}, the solutions are the same.
+     * <br><br>
+     * The sub-problems are solved with an explicit stack of {@linkplain AUTGoal goals} instead of recursion,
+     * so deeply nested terms don't overflow the stack.
+     */
+    private List<SubSolution> solveAUT(ArraySet<GroundTerm> T1, ArraySet<GroundTerm> T2, float alpha1, float alpha2) {
+        Deque<AUTGoal> goals = new ArrayDeque<>();
+        goals.push(new AUTGoal(new SubSolution.Key(T1, T2, alpha1, alpha2)));
+        while (true) {
+            AUTGoal goal = goals.peek();
+            SubSolution.Key key = goal.nextSubProblem();
+            if (key != null) {
+                List<SubSolution> memoized = memo.get(key);
+                if (memoized != null) {
+                    memoHits++;
+                    goal.solved(memoized);
+                } else {
+                    goals.push(new AUTGoal(key));
+                }
+                continue;
+            }
+            goals.pop();
+            memo.put(goal.key, goal.solutions);
+            if (goals.isEmpty()) {
+                return goal.solutions;
+            }
+            goals.peek().solved(goal.solutions);
+        }
+    }
+    
+    /**
+     * An AUT in {@linkplain Algorithm#solveAUT(ArraySet, ArraySet, float, float)}, which is solved once the argument AUTs
+     * of each of its common proximates are solved.
+     * <br>
+     * The common proximates are decomposed one after another, and their arguments are solved in order,
+     * in the context of each partial solution so far.
+     * With {@linkplain Problem#factorize(boolean)}, the arguments are first solved without context instead (see {@linkplain AUTGoal#factorized()}).
+     */
+    private class AUTGoal {
+        final SubSolution.Key key;
+        final List<SubSolution> solutions = new ArrayList<>();
+        // 'null' if the AUT needs no decomposition
+        private final Iterator<String> heads;
+        private final int[] T1Ids, T2Ids;
+        
+        // the current decomposition, or 'null' before the next one
+        private String h = null;
+        private List<ArraySet<GroundTerm>> Q1, Q2;
+        private float beta1, beta2;
+        private List<List<SubSolution>> factors;
+        private boolean factorizing;
+        // partial solutions, where 'generalization' is unused, and the arguments so far are tracked separately
+        private List<Pair<PersistentQueue<Term>, SubSolution>> partials, extended;
+        private int argument, partial;
+        
+        AUTGoal(SubSolution.Key key) {
+            this.key = key;
+            checkBudget(budget.configs, maxConfigs, Status.MAX_CONFIGS);
+            ArraySet<GroundTerm> merged = ArraySet.merged(key.T1, key.T2);
+            if (merged.isEmpty()) {
+                // TRIVIAL
+                solutions.add(new SubSolution(MappedVariableTerm.ANON, PersistentQueue.empty(), key.alpha1, key.alpha2, 0));
+                heads = null;
+                T1Ids = T2Ids = null;
+                return;
+            }
+            ArraySet<String> commonProximates = fuzzySystem.commonProximates(merged);
+            if (commonProximates.size() == 1 && Data.any(merged, term -> term instanceof MappedVariableTerm)) {
+                // special case: MappedVariableTerm as common proximate
+                assert merged.size() == 1;
+                solutions.add(new SubSolution(Data.getAny(merged), PersistentQueue.empty(), key.alpha1, key.alpha2, 0));
+                heads = null;
+                T1Ids = T2Ids = null;
+                return;
+            }
+            heads = commonProximates.iterator();
+            T1Ids = ids(key.T1);
+            T2Ids = ids(key.T2);
+        }
+        
+        /**
+         * The next sub-problem this AUT needs solved, or <b>null</b> once its {@linkplain AUTGoal#solutions} are complete
+         */
+        SubSolution.Key nextSubProblem() {
+            while (true) {
+                if (h == null) {
+                    if (heads == null || !heads.hasNext()) {
+                        if (solutions.isEmpty()) {
+                            // SOLVE
+                            AUT aut = new AUT(0, key.T1, key.T2);
+                            solutions.add(new SubSolution(new VariableTerm(0), PersistentQueue.singleton(aut), key.alpha1, key.alpha2, 1));
+                        }
+                        return null;
+                    }
+                    decomposeWith(heads.next());
+                } else if (factorizing) {
+                    if (factors.size() < Q1.size()) {
+                        return new SubSolution.Key(Q1.get(factors.size()), Q2.get(factors.size()), 1.0f, 1.0f);
                     }
-                    continue BRANCHING;
+                    factorizing = false;
+                    if (!factorized()) {
+                        factorFallbacks++;
+                        factors = null;
+                    }
+                } else if (argument == Q1.size()) {
+                    for (Pair<PersistentQueue<Term>, SubSolution> done : partials) {
+                        SubSolution sofar = done.right;
+                        Term hTerm = new FunctionTerm(h, new ArrayList<>(done.left));
+                        solutions.add(new SubSolution(hTerm, sofar.S, sofar.alpha1, sofar.alpha2, sofar.vars));
+                    }
+                    h = null;
+                } else if (partial == partials.size()) {
+                    partials = extended;
+                    extended = new ArrayList<>();
+                    partial = 0;
+                    argument++;
+                } else if (factors != null) {
+                    extend(factors.get(argument));
+                } else {
+                    SubSolution sofar = partials.get(partial).right;
+                    return new SubSolution.Key(Q1.get(argument), Q2.get(argument), sofar.alpha1, sofar.alpha2);
                 }
-                // SOLVE
-                cfg.S.add(aut);
-                log.debug("SOL => {}", cfg);
             }
-            linearConfigs.add(cfg);
         }
-        
-        assert Data.isSet(linearConfigs);
-        if (!doMerge && !giveWitnesses) {
-            return generateSolutions(linearConfigs);
+        
+        /**
+         * Takes the <b>subSolutions</b> of the last {@linkplain AUTGoal#nextSubProblem() sub-problem}.
+         */
+        void solved(List<SubSolution> subSolutions) {
+            if (factorizing) {
+                factors.add(subSolutions);
+            } else {
+                extend(subSolutions);
+            }
+        }
+        
+        /**
+         * Applies DEC with the common proximate <b>h</b>, unless it falls below λ or its arguments are inconsistent.
+         */
+        private void decomposeWith(String h) {
+            Pair<List<ArraySet<GroundTerm>>, Float> T1Mapped = mapArgs(h, key.T1, T1Ids, key.alpha1);
+            if (T1Mapped.right < lambda) {
+                return;
+            }
+            Pair<List<ArraySet<GroundTerm>>, Float> T2Mapped = mapArgs(h, key.T2, T2Ids, key.alpha2);
+            if (T2Mapped.right < lambda) {
+                return;
+            }
+            if (!consistent(T1Mapped.left, T2Mapped.left)) {
+                return;
+            }
+            this.h = h;
+            Q1 = T1Mapped.left;
+            Q2 = T2Mapped.left;
+            beta1 = T1Mapped.right;
+            beta2 = T2Mapped.right;
+            factorizing = factorize;
+            factors = factorize ? new ArrayList<>(Q1.size()) : null;
+            partials = new ArrayList<>();
+            partials.add(Pair.of(PersistentQueue.empty(), new SubSolution(null, PersistentQueue.empty(), beta1, beta2, 0)));
+            extended = new ArrayList<>();
+            argument = 0;
+            partial = 0;
+        }
+        
+        /**
+         * Combines the next partial solution with each of the <b>argSolutions</b> of the current argument.
+         */
+        private void extend(List<SubSolution> argSolutions) {
+            Pair<PersistentQueue<Term>, SubSolution> current = partials.get(partial++);
+            SubSolution sofar = current.right;
+            for (SubSolution argSolution : argSolutions) {
+                SubSolution arg = argSolution.shifted(sofar.vars);
+                PersistentQueue<AUT> S = sofar.S;
+                for (AUT aut : arg.S) {
+                    S = S.append(aut);
+                }
+                float alpha1 = factors != null ? tNorm.apply(sofar.alpha1, arg.alpha1) : arg.alpha1;
+                float alpha2 = factors != null ? tNorm.apply(sofar.alpha2, arg.alpha2) : arg.alpha2;
+                SubSolution combined = new SubSolution(null, S, alpha1, alpha2, sofar.vars + arg.vars);
+                extended.add(Pair.of(current.left.append(arg.generalization), combined));
+            }
+        }
+        
+        /**
+         * The arguments were solved independently of each other, without any context (i.e. <b>α=1</b>),
+         * so their solutions are shared by every context, and can be combined via the {@linkplain TNorm t-norm}.
+         * <br><br>
+         * This only reproduces the exact solutions if no combination falls below <b>λ</b> in the context of this decomposition,
+         * since then an argument may lose all its viable heads, and has to be solved via SOL instead.
+         * <br>
+         * Returns <b>false</b> in that case, so the arguments are solved in their actual context instead.
+         */
+        private boolean factorized() {
+            float alpha1 = beta1, alpha2 = beta2;
+            for (List<SubSolution> argSolutions : factors) {
+                // by monotonicity, the worst combination consists of the worst solution of each argument
+                float min1 = 1.0f, min2 = 1.0f;
+                for (SubSolution argSolution : argSolutions) {
+                    min1 = Math.min(min1, argSolution.alpha1);
+                    min2 = Math.min(min2, argSolution.alpha2);
+                }
+                alpha1 = tNorm.apply(alpha1, min1);
+                alpha2 = tNorm.apply(alpha2, min2);
+            }
+            return alpha1 >= lambda && alpha2 >= lambda;
+        }
+    }
+    
+    /**
+     * The number of sub-problems whose memoized solutions were reused during the last run.
+     * <br>
+     * (Only counted if {@linkplain Problem#memoize(boolean)} is enabled.)
+     */
+    public int memoHits() {
+        return memoHits;
+    }
+    
+    /**
+     * Applies a post-processing phase to all <b>configs</b>, data-parallel with <b>parallelism > 1</b>.
+     */
+    private Queue<Config> mapConfigs(Queue<Config> configs, UnaryOperator<Config> phase) {
+        if (parallelism <= 1) {
+            return Data.mapToQueue(configs, phase);
+        }
+        return withParallelism(() -> configs.parallelStream().map(phase).collect(Collectors.toCollection(ArrayDeque::new)));
+    }
+    
+    /**
+     * Runs <b>task</b> in a pool of <b>parallelism</b> threads, so the parallel streams inside it use that many threads,
+     * rather than the common pool.
+     * <br>
+     * Tasks which already run in a pool of their own (e.g. in a {@linkplain Branch}, or in {@linkplain Algorithm#mapConfigs})
+     * stay there. Others (e.g. on the workers of the {@linkplain Algorithm#runPipeline() pipeline}) go to a pool
+     * which is shared for the rest of the run, and shut down at its end.
+     */
+    private <T> T withParallelism(Supplier<T> task) {
+        ForkJoinPool current = ForkJoinTask.getPool();
+        if (current != null && current != ForkJoinPool.commonPool()) {
+            return task.get();
+        }
+        return pool().submit(task::get).join();
+    }
+    
+    /**
+     * Shuts down the pool of {@linkplain Algorithm#withParallelism}, once a run is done with it.
+     * (A later run creates a new one, if it needs it.)
+     */
+    private void shutdownPool() {
+        ForkJoinPool pool;
+        synchronized (this) {
+            pool = this.pool;
+            this.pool = null;
         }
-        
-        // *** POST PROCESS ***
-        log.info(Data.log(ANSI.yellow("LINEAR:"), linearConfigs));
-        
-        // EXPAND
-        Queue<Config> expandedConfigs = Data.mapToQueue(linearConfigs, this::expand);
-        assert Data.isSet(expandedConfigs);
-        if (!doMerge) {
-            return generateSolutions(expandedConfigs);
+        if (pool != null) {
+            pool.shutdown();
         }
-        log.info(Data.log(ANSI.yellow("EXPANDED:"), expandedConfigs));
-        
-        // MERGE
-        Queue<Config> mergedConfigs = Data.mapToQueue(expandedConfigs, this::merge);
-        assert Data.isSet(mergedConfigs);
-        return generateSolutions(mergedConfigs);
     }
     
-    // TODO document
-    private Queue<Config> decompose(AUT aut, Config cfg) {
-        Queue<Config> children = new ArrayDeque<>();
-        ArraySet<GroundTerm> merged = ArraySet.merged(aut.T1, aut.T2);
-        ArraySet<String> commonProximates = fuzzySystem.commonProximates(merged);
-        
-        if (commonProximates.size() == 1 && Data.any(merged, term -> term instanceof MappedVariableTerm)) {
-            // special case: MappedVariableTerm as common proximate
-            assert merged.size() == 1;
-            cfg.substitutions.add(new Substitution(aut.variable, Data.getAny(merged)));
-            children.add(cfg);
-            return children;
-        }
-        
-        for (String h : commonProximates) {
-            // map arguments
-            Pair<List<ArraySet<GroundTerm>>, Float> T1Mapped = mapArgs(h, aut.T1, cfg.alpha1);
-            List<ArraySet<GroundTerm>> Q1 = T1Mapped.left;
-            float alpha1 = T1Mapped.right;
-            if (alpha1 < lambda) {
-                continue;
-            }
-            Pair<List<ArraySet<GroundTerm>>, Float> T2Mapped = mapArgs(h, aut.T2, cfg.alpha2);
-            List<ArraySet<GroundTerm>> Q2 = T2Mapped.left;
-            float alpha2 = T2Mapped.right;
-            if (alpha2 < lambda) {
-                continue;
-            }
-            assert Q1 != null && Q2 != null;
-            if (!fuzzySystem.practicalRestrictionType().mapping) {
-                if (Data.any(Q1, q -> !consistent(q)) || Data.any(Q2, q -> !consistent(q))) {
-                    continue;
+    private ForkJoinPool pool() {
+        ForkJoinPool pool = this.pool;
+        if (pool == null) {
+            synchronized (this) {
+                if (this.pool == null) {
+                    this.pool = new ForkJoinPool(parallelism);
                 }
+                pool = this.pool;
             }
-            // apply DEC
-            Config child = commonProximates.size() == 1 ? cfg : cfg.copy();
-            child.alpha1 = alpha1;
-            child.alpha2 = alpha2;
-            List<Term> hArgs = Data.list(fuzzySystem.arity(h), idx -> {
-                int yi = child.freshVar();
-                child.A.add(new AUT(yi, Q1.get(idx), Q2.get(idx)));
-                return new VariableTerm(yi);
-            });
-            child.substitutions.add(new Substitution(aut.variable, new FunctionTerm(h, hArgs)));
-            children.add(child);
         }
-        return children;
+        return pool;
     }
     
-    // TODO document
+    /**
+     * Replaces the terms of each AUT in <b>S</b> with their special conjunction,
+     * i.e. all terms which are proximate to them.
+     * <br><br>
+     * The same sets of terms come up in many configs, so the expansions are kept for reuse,
+     * as many as the {@linkplain Problem#conjunctionCacheSize(int) conjunction cache} holds.
+     * With <b>parallelism > 1</b>, the AUTs are expanded in parallel.
+     */
     private Config expand(Config linearCfg) {
         final int freshVar = linearCfg.freshVar();
         
-        Queue<AUT> expanded = Data.mapToQueue(linearCfg.S, aut -> {
-            Pair<ArraySet<GroundTerm>, Integer> E1 = conjoin(aut.T1, freshVar);
-            Pair<ArraySet<GroundTerm>, Integer> E2 = conjoin(aut.T2, E1.right);
-            assert !E1.left.isEmpty() && !E2.left.isEmpty();
-            return new AUT(aut.variable, E1.left, E2.left);
-        });
-        return linearCfg.copyWithNewS(expanded);
+        Function<Stream<AUT>, Queue<AUT>> expandAll = S -> S.map(aut -> {
+            ArraySet<GroundTerm> E1 = expansion(aut.T1, freshVar);
+            ArraySet<GroundTerm> E2 = expansion(aut.T2, freshVar);
+            assert !E1.isEmpty() && !E2.isEmpty();
+            return new AUT(aut.variable, E1, E2);
+        }).collect(Collectors.toCollection(ArrayDeque::new));
+        Queue<AUT> expanded = parallelism > 1
+                ? withParallelism(() -> expandAll.apply(linearCfg.S.parallelStream()))
+                : expandAll.apply(linearCfg.S.stream());
+        Config expandedCfg = linearCfg.copyWithNewS(expanded);
+        expandedCfg.linearS = linearCfg.S;
+        return expandedCfg;
     }
     
-    // TODO document
+    /**
+     * Conjunctions are ground, so where they start with their fresh variables doesn't matter here.
+     */
+    private ArraySet<GroundTerm> expansion(ArraySet<GroundTerm> terms, int freshVar) {
+        if (expansions == null) {
+            return conjoin(terms, freshVar).left;
+        }
+        ArraySet<GroundTerm> expansion = expansions.get(terms);
+        if (expansion == null) {
+            // not 'computeIfAbsent', which would lock the whole map while conjoining
+            expansion = conjoin(terms, freshVar).left;
+            expansions.put(terms, expansion);
+        }
+        return expansion;
+    }
+    
+    /**
+     * Greedily merges the AUTs of an expanded {@linkplain Config}:
+     * each AUT in turn collects all remaining AUTs whose terms can be conjoined with its own, on both sides.
+     * <br><br>
+     * Conjoining is expensive, so each candidate is first checked against a necessary condition on symbol level
+     * (see {@linkplain MergeCandidate}).
+     * <br>
+     * With <b>parallelism > 1</b>, the collector is conjoined with the remaining candidates in parallel, see {@linkplain Algorithm#firstMerge}.
+     * Up to the first one which succeeds, those are exactly the results the sequential merge would get,
+     * so the candidates after it are checked against the grown collector, in the next round.
+     */
     private Config merge(Config expandedCfg) {
-        Queue<AUT> remaining = new ArrayDeque<>(expandedCfg.S);
+        Queue<MergeCandidate> remaining = Data.mapToQueue(expandedCfg.S, MergeCandidate::new);
         Queue<AUT> merged = new ArrayDeque<>();
         
         while (!remaining.isEmpty()) {
             // pick one AUT as 'collector'
-            AUT collector = remaining.remove();
-            Queue<AUT> notCollected = new ArrayDeque<>();
+            MergeCandidate collector = remaining.remove();
+            Queue<MergeCandidate> notCollected = new ArrayDeque<>();
             Queue<Integer> collectedVars = new ArrayDeque<>();
             // need to manually keep track of 'fresh var'
             int freshVar = expandedCfg.peekVar();
             // try merge on each remaining AUT
-            for (AUT candidate : remaining) {
-                Pair<ArraySet<GroundTerm>, Integer> mergedLHS =
-                        conjoin(ArraySet.merged(collector.T1, candidate.T1), freshVar);
-                Pair<ArraySet<GroundTerm>, Integer> mergedRHS = mergedLHS.left.isEmpty() ? mergedLHS :
-                        conjoin(ArraySet.merged(collector.T2, candidate.T2), mergedLHS.right);
-                
-                if (mergedLHS.left.isEmpty() || mergedRHS.left.isEmpty()) {
-                    notCollected.add(candidate);
+            List<MergeCandidate> candidates = new ArrayList<>(remaining);
+            int next = 0;
+            while (next < candidates.size()) {
+                List<MergeCandidate> round = candidates.subList(next, candidates.size());
+                Pair<MergeCandidate, Integer> result = null;
+                int found = 0;
+                if (parallelism > 1) {
+                    List<Pair<MergeCandidate, Integer>> attempts = new ArrayList<>(Collections.nCopies(round.size(), null));
+                    found = firstMerge(collector, round, freshVar, attempts);
+                    result = found < round.size() ? attempts.get(found) : null;
                 } else {
-                    collectedVars.add(candidate.variable);
-                    collector = new AUT(collector.variable, mergedLHS.left, mergedRHS.left);
-                    freshVar = mergedRHS.right;
+                    while (found < round.size() && (result = tryMerge(collector, round.get(found), freshVar)) == null) {
+                        found++;
+                    }
+                }
+                notCollected.addAll(round.subList(0, found));
+                if (result == null) {
+                    break;
                 }
+                collectedVars.add(round.get(found).aut.variable);
+                collector = result.left;
+                freshVar = result.right;
+                next += found + 1;
             }
             // the merged set can't be consistent with any remaining AUTs, since we checked against them with a subset
             remaining = notCollected;
             if (collectedVars.isEmpty()) {
-                merged.add(collector);
+                merged.add(collector.aut);
             } else {
-                collectedVars.add(collector.variable);
+                collectedVars.add(collector.aut.variable);
                 final VariableTerm y = new VariableTerm(freshVar);
-                collectedVars.forEach(var -> expandedCfg.substitutions.add(new Substitution(var, y)));
-                merged.add(new AUT(y.var, collector.T1, collector.T2));
+                collectedVars.forEach(var -> expandedCfg.substitutions = expandedCfg.substitutions.append(new Substitution(var, y)));
+                merged.add(new AUT(y.var, collector.aut.T1, collector.aut.T2));
             }
         }
         assert Data.isSet(merged);
         return expandedCfg.copyWithNewS(merged);
     }
     
+    /**
+     * Tries to merge <b>collector</b> with the <b>candidates</b> in parallel, putting each result into <b>attempts</b> at its index.
+     * <br>
+     * Once a candidate succeeds, the candidates after it are skipped, since the next round tries them with the grown collector anyway.
+     * All candidates before it are tried, so they are known to fail.
+     *
+     * @return the index of the first candidate which succeeds, or <b>candidates.size()</b> if none does
+     */
+    private int firstMerge(MergeCandidate collector, List<MergeCandidate> candidates, int freshVar,
+                           List<Pair<MergeCandidate, Integer>> attempts) {
+        AtomicInteger first = new AtomicInteger(candidates.size());
+        return withParallelism(() -> {
+            IntStream.range(0, candidates.size()).parallel().forEach(idx -> {
+                if (idx > first.get()) {
+                    return;
+                }
+                Pair<MergeCandidate, Integer> attempt = tryMerge(collector, candidates.get(idx), freshVar);
+                attempts.set(idx, attempt);
+                if (attempt != null) {
+                    first.accumulateAndGet(idx, Math::min);
+                }
+            });
+            return first.get();
+        });
+    }
+    
+    /**
+     * Conjoins the terms of <b>collector</b> and <b>candidate</b> on both sides, starting at <b>freshVar</b>.
+     *
+     * @return the grown collector and the next fresh var, or <b>null</b> if either conjunction is empty
+     */
+    private Pair<MergeCandidate, Integer> tryMerge(MergeCandidate collector, MergeCandidate candidate, int freshVar) {
+        if (!collector.mayConjoin(candidate)) {
+            return null;
+        }
+        Pair<ArraySet<GroundTerm>, Integer> mergedLHS = conjoin(ArraySet.merged(collector.aut.T1, candidate.aut.T1), freshVar);
+        if (mergedLHS.left.isEmpty()) {
+            return null;
+        }
+        Pair<ArraySet<GroundTerm>, Integer> mergedRHS = conjoin(ArraySet.merged(collector.aut.T2, candidate.aut.T2), mergedLHS.right);
+        if (mergedRHS.left.isEmpty()) {
+            return null;
+        }
+        return Pair.of(new MergeCandidate(new AUT(collector.aut.variable, mergedLHS.left, mergedRHS.left)), mergedRHS.right);
+    }
+    
+    /**
+     * An {@linkplain AUT} considered for merging, along with the common proximates of each side's terms.
+     * <br><br>
+     * The head of any term in a conjunction must be a common proximate of all the conjoined terms,
+     * so two AUTs can only be merged if their common proximates intersect on both sides.
+     */
+    private class MergeCandidate {
+        final AUT aut;
+        // 'null' if the side only contains ANON, which doesn't restrict the heads
+        private final ArraySet<String> proximates1, proximates2;
+        
+        MergeCandidate(AUT aut) {
+            this.aut = aut;
+            this.proximates1 = commonProximates(aut.T1);
+            this.proximates2 = commonProximates(aut.T2);
+        }
+        
+        private ArraySet<String> commonProximates(ArraySet<GroundTerm> terms) {
+            ArraySet<GroundTerm> nonAnonTerms = withoutAnon(terms);
+            return nonAnonTerms.isEmpty() ? null : fuzzySystem.commonProximates(nonAnonTerms);
+        }
+        
+        boolean mayConjoin(MergeCandidate other) {
+            return intersect(proximates1, other.proximates1) && intersect(proximates2, other.proximates2);
+        }
+        
+        private boolean intersect(ArraySet<String> a, ArraySet<String> b) {
+            return a == null || b == null || Data.any(a, b::contains);
+        }
+    }
+    
     /**
      * for each <b>t</b> in <b>T</b>, add to <b>Q[i]</b> the arguments which <b>h|i</b> maps to
      * <br><br>
@@ -270,12 +1516,19 @@ public class Algorithm {
      * <br>
      * .... then .... Q = [{a}, {b,c}]
      * </code>
+     * <br><br>
+     * <b>TIds</b> are the symbol ids of <b>T</b>'s heads (see {@linkplain Algorithm#ids(Collection)}),
+     * so callers which map the same <b>T</b> for each of their common proximates only look them up once.
      */
-    private Pair<List<ArraySet<GroundTerm>>, Float> mapArgs(String h, ArraySet<GroundTerm> T, float beta) {
-        int hArity = fuzzySystem.arity(h);
+    private Pair<List<ArraySet<GroundTerm>>, Float> mapArgs(String h, ArraySet<GroundTerm> T, int[] TIds, float beta) {
+        int hId = symbols == null ? -1 : symbols.id(h);
+        int hArity = symbols == null ? fuzzySystem.arity(h) : symbols.arity(hId);
         List<Set<GroundTerm>> Q = Data.list(hArity, idx -> new HashSet<>());
+        int tIdx = 0;
         for (GroundTerm t : T) {
-            ProximityRelation htRelation = fuzzySystem.proximityRelation(h, t.head);
+            ProximityRelation htRelation = symbols == null ?
+                    fuzzySystem.proximityRelation(h, t.head) :
+                    symbols.proximityRelation(hId, TIds[tIdx++]);
             beta = tNorm.apply(beta, htRelation.proximity);
             if (beta < lambda) {
                 return Pair.of(null, beta);
@@ -289,63 +1542,441 @@ public class Algorithm {
         return Pair.of(Data.mapToList(Q, ArraySet::of), beta);
     }
     
-    private Set<Solution> generateSolutions(Collection<Config> configs) {
-        Set<Solution> solutions = configs.stream().map(cfg -> {
-            Term term = Substitution.applyAll(cfg.substitutions, VariableTerm.VAR_0);
-            Pair<Witness, Witness> witnesses = giveWitnesses ? generateWitnesses(cfg, term) : Pair.of(null, null);
-            return new Solution(term, witnesses.left, witnesses.right, cfg.alpha1, cfg.alpha2);
-        }).collect(Collectors.toSet());
-        
+    /**
+     * The symbol ids of the heads of <b>terms</b>, or <b>null</b> if there is no symbol table (i.e. for a custom fuzzy system).
+     */
+    private int[] ids(Collection<GroundTerm> terms) {
+        return symbols == null ? null : symbols.ids(terms);
+    }
+    
+    /**
+     * Runs the post-processing steps on a single linear {@linkplain Config}, and turns it into its {@linkplain Solution}.
+     */
+    private Solution postProcess(Config linearCfg) {
+        Config cfg = linearCfg;
+        if (doMerge || expandForWitnesses) {
+            cfg = expand(cfg);
+            if (doMerge) {
+                cfg = merge(cfg);
+            }
+        }
+        return generateSolution(cfg);
+    }
+    
+    /**
+     * Like {@linkplain Algorithm#postProcess(Config)}, but if the budget runs out meanwhile,
+     * the solution is generated without post-processing instead. (The run then stops at its next step.)
+     */
+    private Solution postProcessWithinBudget(Config linearCfg) {
+        try {
+            return postProcess(linearCfg);
+        } catch (BudgetExceeded e) {
+            return generateSolution(linearCfg, false);
+        }
+    }
+    
+    private Set<Solution> generateSolutions(Collection<Config> configs, boolean witnesses) {
+        return logSolutions(configs.stream().map(cfg -> generateSolution(cfg, witnesses)).collect(Collectors.toSet()));
+    }
+    
+    private Solution generateSolution(Config cfg) {
+        return generateSolution(cfg, giveWitnesses);
+    }
+    
+    private Solution generateSolution(Config cfg, boolean giveWitnesses) {
+        Term term = bank.internAll(Substitution.applyAll(cfg.substitutions, VariableTerm.VAR_0));
+        if (giveWitnesses && lazyWitnesses) {
+            // captures the generator, not 'this'
+            Algorithm generator = witnessGenerator;
+            return new Solution(term, () -> generator.generateWitnesses(cfg, term),
+                    cfg.alpha1, cfg.alpha2, approximate);
+        }
+        Pair<Witness, Witness> witnesses = giveWitnesses ? generateWitnesses(cfg, term) : Pair.of(null, null);
+        return new Solution(term, witnesses.left, witnesses.right, cfg.alpha1, cfg.alpha2, approximate);
+    }
+    
+    private Set<Solution> logSolutions(Set<Solution> solutions) {
         log.info(Data.log(ANSI.yellow("SOLUTIONS:"), solutions));
         log.info("██");
         return solutions;
     }
     
+    /**
+     * Generates the witnesses of <b>cfg</b> according to the {@linkplain WitnessPolicy},
+     * expanding it first if the policy needs the expanded sets and it wasn't expanded yet.
+     */
     private Pair<Witness, Witness> generateWitnesses(Config cfg, Term r) {
-        Map<Integer, Set<Term>> W1 = new HashMap<>();
-        Map<Integer, Set<Term>> W2 = new HashMap<>();
-        for (int var : r.v_named()) {
-            Pair<Set<Term>, Set<Term>> applied = AUT.substituteAll(cfg.S, new VariableTerm(var));
-            W1.put(var, applied.left);
-            W2.put(var, applied.right);
+        switch (witnessPolicy) {
+            case BEST:
+                return AUT.witnesses(bestAUTs(cfg), r.v_named());
+            case COUNT:
+                return AUT.counts(expanded(cfg).S, r.v_named());
+            default:
+                return AUT.witnesses(expanded(cfg).S, r.v_named());
+        }
+    }
+    
+    private Config expanded(Config cfg) {
+        return cfg.linearS != null ? cfg : expand(cfg);
+    }
+    
+    /**
+     * For each variable, the alternatives which are closest to all the terms it generalizes.
+     * <br><br>
+     * If the variable generalizes a single term per side (which is the usual case without merging),
+     * that term itself is the only closest alternative, so there's nothing to expand.
+     * Otherwise, the alternatives are ranked by their proximity to each of the terms, combined with the t-norm.
+     */
+    private List<AUT> bestAUTs(Config cfg) {
+        PersistentQueue<AUT> linearS = cfg.linearS != null ? cfg.linearS : cfg.S;
+        // merging substitutes variables by variables, so follow those to find where each linear AUT ended up
+        Map<Integer, Integer> renaming = new HashMap<>();
+        for (Substitution substitution : cfg.substitutions) {
+            if (substitution.substitute instanceof VariableTerm) {
+                renaming.put(substitution.var, ((VariableTerm) substitution.substitute).var);
+            }
+        }
+        Map<Integer, AUT> originals = new HashMap<>();
+        for (AUT aut : linearS) {
+            int var = aut.variable;
+            while (renaming.containsKey(var)) {
+                var = renaming.get(var);
+            }
+            AUT other = originals.get(var);
+            originals.put(var, other == null ? aut : new AUT(var, ArraySet.merged(other.T1, aut.T1), ArraySet.merged(other.T2, aut.T2)));
+        }
+        Map<Integer, AUT> alternatives = new HashMap<>();
+        if (cfg.linearS != null) {
+            cfg.S.forEach(aut -> alternatives.putIfAbsent(aut.variable, aut));
+        }
+        final int freshVar = cfg.peekVar();
+        List<AUT> best = new ArrayList<>();
+        originals.forEach((var, original) -> {
+            AUT expanded = alternatives.get(var);
+            best.add(new AUT(var,
+                    closest(original.T1, expanded != null ? expanded.T1 : null, freshVar),
+                    closest(original.T2, expanded != null ? expanded.T2 : null, freshVar)));
+        });
+        return best;
+    }
+    
+    private ArraySet<GroundTerm> closest(ArraySet<GroundTerm> originals, ArraySet<GroundTerm> alternatives, int freshVar) {
+        if (originals.size() <= 1) {
+            return originals;
+        }
+        if (alternatives == null) {
+            alternatives = expansion(originals, freshVar);
+        }
+        List<GroundTerm> closest = new ArrayList<>();
+        float max = -1.0f;
+        int[] originalIds = ids(originals);
+        for (GroundTerm alternative : alternatives) {
+            int alternativeId = id(alternative);
+            float degree = 1.0f;
+            int originalIdx = 0;
+            for (GroundTerm original : originals) {
+                int originalId = originalIds == null ? -1 : originalIds[originalIdx++];
+                degree = tNorm.apply(degree, proximity(alternative, alternativeId, original, originalId));
+            }
+            if (degree > max) {
+                closest.clear();
+                max = degree;
+            }
+            if (degree == max) {
+                closest.add(alternative);
+            }
+        }
+        return ArraySet.of(closest, true);
+    }
+    
+    /**
+     * The proximity of the terms <b>u</b> and <b>t</b>, where ANON is close to anything.
+     * <br>
+     * <b>uId</b> and <b>tId</b> are the symbol ids of their heads, if there is a symbol table.
+     */
+    private float proximity(GroundTerm u, int uId, GroundTerm t, int tId) {
+        if (MappedVariableTerm.ANON.equals(u) || MappedVariableTerm.ANON.equals(t)) {
+            return 1.0f;
+        }
+        ProximityRelation relation = symbols == null ? fuzzySystem.proximityRelation(u.head, t.head) : symbols.proximityRelation(uId, tId);
+        if (relation == null) {
+            return 0.0f;
+        }
+        float degree = relation.proximity;
+        for (int uIdx = 0; uIdx < relation.argMapping.size(); uIdx++) {
+            GroundTerm uArg = u.arguments.get(uIdx);
+            int uArgId = id(uArg);
+            for (int tIdx : relation.argMapping.get(uIdx)) {
+                GroundTerm tArg = t.arguments.get(tIdx);
+                degree = tNorm.apply(degree, proximity(uArg, uArgId, tArg, id(tArg)));
+            }
+        }
+        return degree;
+    }
+    
+    private int id(GroundTerm term) {
+        return symbols == null ? -1 : symbols.id(term.head);
+    }
+    
+    // *** λ-sweep ***
+    
+    /**
+     * The cuts at or below <b>alpha</b>, as a bitmask.
+     */
+    private long cutsUpTo(float alpha) {
+        long mask = 0L;
+        for (int idx = 0; idx < cuts.length && cuts[idx] <= alpha; idx++) {
+            mask |= 1L << idx;
+        }
+        return mask;
+    }
+    
+    /**
+     * The subset of <b>candidates</b> at which the argument sets <b>Q1</b> and <b>Q2</b> are consistent.
+     */
+    private long consistentCuts(List<ArraySet<GroundTerm>> Q1, List<ArraySet<GroundTerm>> Q2, long candidates) {
+        long mask = 0L;
+        for (int idx = 0; idx < cuts.length; idx++) {
+            long cut = 1L << idx;
+            if ((candidates & cut) != 0L && cutAlgorithms[idx].consistent(Q1, Q2)) {
+                mask |= cut;
+            }
+        }
+        return mask;
+    }
+    
+    // *** budgets ***
+    
+    /**
+     * Counts one unit of work on <b>counter</b>, and stops the run via {@linkplain BudgetExceeded}
+     * if that exceeds <b>max</b>, if any other budget is used up, or if the run was cancelled.
+     */
+    private void checkBudget(AtomicLong counter, long max, Status limit) {
+        if (budget.status != Status.COMPLETE) {
+            throw new BudgetExceeded();
+        }
+        if (max > 0 && counter.incrementAndGet() > max) {
+            exceed(limit);
+        }
+        if (budget.deadline != Long.MAX_VALUE && System.nanoTime() > budget.deadline) {
+            exceed(Status.TIME_LIMIT);
+        }
+        if (maxHeap > 0) {
+            Runtime runtime = Runtime.getRuntime();
+            if (runtime.totalMemory() - runtime.freeMemory() > maxHeap) {
+                exceed(Status.MAX_HEAP);
+            }
+        }
+    }
+    
+    private void exceed(Status limit) {
+        stop(limit);
+        throw new BudgetExceeded();
+    }
+    
+    private void stop(Status limit) {
+        synchronized (budget) {
+            // only the first limit counts
+            if (budget.status == Status.COMPLETE) {
+                budget.status = limit;
+            }
+        }
+    }
+    
+    /**
+     * The state of the budgets during a run, shared between the {@linkplain Algorithm}s of a λ-sweep.
+     */
+    private static class Budget {
+        final AtomicLong configs = new AtomicLong(), conjunctionBranches = new AtomicLong();
+        volatile long deadline = Long.MAX_VALUE;
+        volatile Status status = Status.COMPLETE;
+    }
+    
+    /**
+     * Unwinds the search once the run has to stop early, see {@linkplain Algorithm#status()}.
+     */
+    private static class BudgetExceeded extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        BudgetExceeded() {
+            super(null, null, false, false);
         }
-        return Pair.of(new Witness(W1), new Witness(W2));
     }
     
     // *** special conjunction ***
     
+    /**
+     * Checks if all argument sets of a decomposition are consistent, which is trivially the case for mapping relations.
+     */
+    private boolean consistent(List<ArraySet<GroundTerm>> Q1, List<ArraySet<GroundTerm>> Q2) {
+        if (skipConsistencyChecks) {
+            return true;
+        }
+        return Data.all(Q1, this::consistent) && Data.all(Q2, this::consistent);
+    }
+    
+    /**
+     * Checks if some term is proximate to all of <b>terms</b>, i.e. if their special conjunction is non-empty.
+     * <br><br>
+     * Unlike the conjunction itself, this doesn't need to build any terms,
+     * so the arguments of each common proximate can be checked independently of each other.
+     * This searches depth-first, and stops at the first common proximate whose arguments are all consistent.
+     */
     public boolean consistent(ArraySet<GroundTerm> terms) {
-        return doConjoin(terms, VariableTerm.VAR_0.var, true) == IS_CONSISTENT;
+        ArraySet<GroundTerm> nonAnonTerms = withoutAnon(terms);
+        if (nonAnonTerms.size() <= 1) {
+            // REMOVE
+            return true;
+        }
+        if (conjunctionCache != null) {
+            return conjunctionCache.consistent(nonAnonTerms, this::searchConsistent);
+        }
+        return searchConsistent(nonAnonTerms);
     }
     
-    private Pair<ArraySet<GroundTerm>, Integer> conjoin(ArraySet<GroundTerm> terms, int freshVar) {
-        Pair<ArraySet<GroundTerm>, Integer> result = doConjoin(terms, freshVar, false);
-        assert result != null;
-        return result;
+    /**
+     * Checks the arguments of the candidates with an explicit stack of {@linkplain ConsistencyGoal goals} instead of recursion,
+     * so deeply nested terms can't overflow the call stack.
+     * <br>
+     * Each argument is decided on its own, so an argument is never checked again for another choice of its siblings.
+     */
+    private boolean searchConsistent(ArraySet<GroundTerm> nonAnonTerms) {
+        Deque<ConsistencyGoal> goals = new ArrayDeque<>();
+        goals.push(new ConsistencyGoal(nonAnonTerms, consistencyCandidates(nonAnonTerms)));
+        while (true) {
+            ConsistencyGoal goal = goals.peek();
+            ArraySet<GroundTerm> argument = goal.nextArgument();
+            if (argument != null) {
+                ArraySet<GroundTerm> nonAnonArgument = withoutAnon(argument);
+                // REMOVE, or already decided
+                Boolean known = nonAnonArgument.size() <= 1 ? Boolean.TRUE
+                        : conjunctionCache == null ? null : conjunctionCache.verdict(nonAnonArgument);
+                if (known != null) {
+                    goal.decide(known);
+                } else {
+                    goals.push(new ConsistencyGoal(nonAnonArgument, consistencyCandidates(nonAnonArgument)));
+                }
+                continue;
+            }
+            goals.pop();
+            if (goals.isEmpty()) {
+                return goal.consistent();
+            }
+            if (conjunctionCache != null) {
+                conjunctionCache.putVerdict(goal.terms, goal.consistent());
+            }
+            goals.peek().decide(goal.consistent());
+        }
+    }
+    
+    /**
+     * The argument sets of each common proximate of <b>nonAnonTerms</b> which might be consistent, fewest arguments first.
+     */
+    private List<List<ArraySet<GroundTerm>>> consistencyCandidates(ArraySet<GroundTerm> nonAnonTerms) {
+        checkBudget(budget.conjunctionBranches, maxConjunctionBranches, Status.MAX_CONJUNCTION_BRANCHES);
+        List<List<ArraySet<GroundTerm>>> candidates = new ArrayList<>();
+        int[] termIds = ids(nonAnonTerms);
+        for (String h : fuzzySystem.commonProximates(nonAnonTerms)) {
+            List<ArraySet<GroundTerm>> Q = mapArgs(h, nonAnonTerms, termIds, 1.0f).left;
+            assert Q != null;
+            // fail fast: each argument needs a common proximate of its own, before it's worth looking any deeper
+            if (Data.all(Q, this::hasCommonProximate)) {
+                candidates.add(Q);
+            }
+        }
+        // the fewer arguments, the fewer ways to fail
+        candidates.sort(Comparator.comparingInt(List::size));
+        return candidates;
+    }
+    
+    /**
+     * A set of <b>terms</b> in {@linkplain Algorithm#searchConsistent(ArraySet)}, which is consistent
+     * if all arguments of one of its <b>candidates</b> are consistent.
+     * <br>
+     * The candidates are tried in order, and their arguments are decided one after another.
+     */
+    private static class ConsistencyGoal {
+        final ArraySet<GroundTerm> terms;
+        final List<List<ArraySet<GroundTerm>>> candidates;
+        int candidate = 0, argument = 0;
+        
+        ConsistencyGoal(ArraySet<GroundTerm> terms, List<List<ArraySet<GroundTerm>>> candidates) {
+            this.terms = terms;
+            this.candidates = candidates;
+        }
+        
+        /**
+         * The next argument to decide, or <b>null</b> once this goal is decided
+         */
+        ArraySet<GroundTerm> nextArgument() {
+            if (candidate == candidates.size()) {
+                return null;
+            }
+            List<ArraySet<GroundTerm>> Q = candidates.get(candidate);
+            return argument == Q.size() ? null : Q.get(argument);
+        }
+        
+        void decide(boolean consistent) {
+            if (consistent) {
+                argument++;
+            } else {
+                // this candidate fails, try the next one
+                candidate++;
+                argument = 0;
+            }
+        }
+        
+        /**
+         * Only meaningful once this goal is decided
+         */
+        boolean consistent() {
+            return candidate < candidates.size();
+        }
+    }
+    
+    private boolean hasCommonProximate(ArraySet<GroundTerm> terms) {
+        ArraySet<GroundTerm> nonAnonTerms = withoutAnon(terms);
+        return nonAnonTerms.size() <= 1 || !fuzzySystem.commonProximates(nonAnonTerms).isEmpty();
+    }
+    
+    // by explicitly ignore ANON, we don't need to worry about defining R.proximityClass(ANON)
+    // we might also get to "cheat" and apply REMOVE where we couldn't otherwise
+    private ArraySet<GroundTerm> withoutAnon(ArraySet<GroundTerm> terms) {
+        return skipAnonFilter ? terms : terms.filter(term -> !MappedVariableTerm.ANON.equals(term));
+    }
+    
+    private static boolean containsAnon(GroundTerm term) {
+        if (term instanceof ArenaTerm) {
+            return ((ArenaTerm) term).arena.containsAnon(((ArenaTerm) term).node);
+        }
+        return MappedVariableTerm.ANON.equals(term) || Data.any(term.arguments, Algorithm::containsAnon);
     }
     
-    private final Pair<ArraySet<GroundTerm>, Integer> IS_CONSISTENT = Pair.of(null, null);
+    private Pair<ArraySet<GroundTerm>, Integer> conjoin(ArraySet<GroundTerm> terms, int freshVar) {
+        if (conjunctionCache == null) {
+            return doConjoin(terms, freshVar);
+        }
+        return conjunctionCache.conjoin(terms, freshVar, this::doConjoin);
+    }
     
     // TODO document
-    private Pair<ArraySet<GroundTerm>, Integer> doConjoin(ArraySet<GroundTerm> terms, int baseVar, boolean consistencyCheck) {
+    private Pair<ArraySet<GroundTerm>, Integer> doConjoin(ArraySet<GroundTerm> terms, int baseVar) {
         int freshVar = baseVar;
         Queue<State> branches = new ArrayDeque<>();
         branches.add(new State(terms, freshVar));
         
-        Queue<GroundTerm> solutions = consistencyCheck ? null : new ArrayDeque<>();
+        Queue<GroundTerm> solutions = new ArrayDeque<>();
         BRANCHING:
         while (!branches.isEmpty()) {
+            checkBudget(budget.conjunctionBranches, maxConjunctionBranches, Status.MAX_CONJUNCTION_BRANCHES);
             State state = branches.remove();
             while (!state.expressions.isEmpty()) {
-                Expression expression = state.expressions.remove();
-                // by explicitly ignore ANON, we don't need to worry about defining R.proximityClass(ANON)
-                // we might also get to "cheat" and apply REMOVE where we couldn't otherwise
-                ArraySet<GroundTerm> nonAnonTerms = expression.T.filter(term -> !MappedVariableTerm.ANON.equals(term));
+                Expression expression = state.expressions.head();
+                state.expressions = state.expressions.tail();
+                ArraySet<GroundTerm> nonAnonTerms = withoutAnon(expression.T);
                 // REMOVE
-                if (consistencyCheck && nonAnonTerms.size() <= 1) {
-                    continue;
-                } else if (nonAnonTerms.isEmpty()) {
-                    state.s.add(new Substitution(expression.variable, MappedVariableTerm.ANON));
+                if (nonAnonTerms.isEmpty()) {
+                    state.s = state.s.append(new Substitution(expression.variable, MappedVariableTerm.ANON));
                     continue;
                 }
                 // REDUCE
@@ -354,38 +1985,32 @@ public class Algorithm {
                 if (commonProximates.size() == 1 && Data.any(nonAnonTerms, term -> term instanceof MappedVariableTerm)) {
                     // special case: MappedVariableTerm as common proximate
                     assert nonAnonTerms.size() == 1;
-                    state.s.add(new Substitution(expression.variable, Data.getAny(nonAnonTerms)));
+                    state.s = state.s.append(new Substitution(expression.variable, Data.getAny(nonAnonTerms)));
                     branches.add(state);
                 } else {
+                    int[] termIds = ids(nonAnonTerms);
                     for (String h : commonProximates) {
-                        List<ArraySet<GroundTerm>> Q = mapArgs(h, nonAnonTerms, 1.0f).left;
+                        List<ArraySet<GroundTerm>> Q = mapArgs(h, nonAnonTerms, termIds, 1.0f).left;
                         assert Q != null;
                         State childState = commonProximates.size() == 1 ? state : state.copy();
                         
-                        List<Term> hArgs = Data.list(fuzzySystem.arity(h), idx -> {
+                        List<Term> hArgs = Data.list(Q.size(), idx -> {
                             int yi = childState.freshVar();
-                            childState.expressions.add(new Expression(yi, Q.get(idx)));
+                            childState.expressions = childState.expressions.append(new Expression(yi, Q.get(idx)));
                             return new VariableTerm(yi);
                         });
                         
                         freshVar = Math.max(freshVar, childState.peekVar());
                         Term hTerm = new FunctionTerm(h, hArgs);
-                        if (!consistencyCheck) {
-                            childState.s.add(new Substitution(expression.variable, hTerm));
-                        }
+                        childState.s = childState.s.append(new Substitution(expression.variable, hTerm));
                         branches.add(childState);
                     }
                 }
                 
                 continue BRANCHING;
             }
-            if (consistencyCheck) {
-                return IS_CONSISTENT;
-            }
-            solutions.add(Substitution.applyAllForceGroundTerm(state.s, new VariableTerm(baseVar)));
-        }
-        if (consistencyCheck) {
-            return null;
+            GroundTerm solution = Substitution.applyAllForceGroundTerm(state.s, new VariableTerm(baseVar));
+            solutions.add(bank == null ? solution : bank.internAll(solution));
         }
         if (log.isDebugEnabled()) {
             log.debug("  conjunction: {} => {}", terms, solutions);
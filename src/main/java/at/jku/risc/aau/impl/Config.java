@@ -1,13 +1,16 @@
 package at.jku.risc.aau.impl;
 
+import at.jku.risc.aau.term.FunctionTerm;
 import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.term.Term;
 import at.jku.risc.aau.term.VariableTerm;
 import at.jku.risc.aau.util.ANSI;
 import at.jku.risc.aau.util.ArraySet;
 import at.jku.risc.aau.util.Data;
+import at.jku.risc.aau.util.PersistentQueue;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.*;
+import java.util.function.IntUnaryOperator;
 
 /**
  * {@linkplain Config}s are mutable representations of the branching program states, where:
@@ -17,23 +20,52 @@ import java.util.Queue;
  *     <li> {@linkplain Config#S} is the set of fully generalized sub-terms
  * </ul>
  * When branching occurs, a new {@linkplain Config#copy()} is created per branch.
+ * <br>
+ * Since the queues are {@linkplain PersistentQueue persistent}, a copy is O(1) and shares its history with the original.
  */
 class Config {
-    final Queue<AUT> A, S;
-    final Queue<Substitution> substitutions;
+    PersistentQueue<AUT> A, S;
+    PersistentQueue<Substitution> substitutions;
     
     float alpha1, alpha2;
     
     int freshVar;
     
+    /**
+     * The λ-cuts this branch is valid for, as a bitmask (only used by the λ-sweep, see {@linkplain Algorithm#sweep(Problem, float...)})
+     */
+    long cuts = ~0L;
+    
+    /**
+     * {@linkplain Config#S} as it was before the <b>expand</b> step, or <b>null</b> if this config wasn't expanded
+     * (used for {@linkplain at.jku.risc.aau.WitnessPolicy#BEST}, which compares the expanded terms with the original ones)
+     */
+    PersistentQueue<AUT> linearS = null;
+    
+    /**
+     * The fingerprints of the explored ancestors of this branch (only used to {@linkplain Duplicates prune duplicates})
+     */
+    PersistentQueue<Fingerprint> lineage = PersistentQueue.empty();
+    
     Config(GroundTerm T1, GroundTerm T2) {
-        A = new ArrayDeque<>();
-        S = new ArrayDeque<>();
-        substitutions = new ArrayDeque<>();
+        S = PersistentQueue.empty();
+        substitutions = PersistentQueue.empty();
         alpha1 = 1.0f;
         alpha2 = 1.0f;
         freshVar = 0;
-        A.add(new AUT(freshVar(), ArraySet.singleton(T1), ArraySet.singleton(T2)));
+        A = PersistentQueue.singleton(new AUT(freshVar(), ArraySet.singleton(T1), ArraySet.singleton(T2)));
+    }
+    
+    /**
+     * Creates the linear config which substitutes the root variable with <b>generalization</b>.
+     */
+    Config(Term generalization, Collection<AUT> S, float alpha1, float alpha2, int freshVar) {
+        this.A = PersistentQueue.empty();
+        this.S = PersistentQueue.of(S);
+        this.substitutions = PersistentQueue.singleton(new Substitution(VariableTerm.VAR_0.var, generalization));
+        this.alpha1 = alpha1;
+        this.alpha2 = alpha2;
+        this.freshVar = freshVar;
     }
     
     private Config(Config original) {
@@ -44,16 +76,19 @@ class Config {
         return new Config(this);
     }
     
-    private Config(Config original, Queue<AUT> S) {
-        this.A = new ArrayDeque<>(original.A);
-        this.S = new ArrayDeque<>(S);
-        this.substitutions = new ArrayDeque<>(original.substitutions);
+    private Config(Config original, Collection<AUT> S) {
+        this.A = original.A;
+        this.S = PersistentQueue.of(S);
+        this.substitutions = original.substitutions;
         this.alpha1 = original.alpha1;
         this.alpha2 = original.alpha2;
         this.freshVar = original.freshVar;
+        this.cuts = original.cuts;
+        this.linearS = original.linearS;
+        this.lineage = original.lineage;
     }
     
-    Config copyWithNewS(Queue<AUT> S) {
+    Config copyWithNewS(Collection<AUT> S) {
         return new Config(this, S);
     }
     
@@ -65,6 +100,124 @@ class Config {
         return freshVar + 1;
     }
     
+    /**
+     * A representation of the remaining work of this {@linkplain Config}, which is invariant under variable renaming.
+     * <br>
+     * Configs with equal fingerprints only differ in their partial generalizations, so their remaining derivations are the same
+     * (up to variable renaming), see {@linkplain Config#grafted(Config, Config)}.
+     * <br><br>
+     * Variables are renamed by order of occurrence in {@linkplain Config#A} and {@linkplain Config#S},
+     * which are then compared as sets.
+     */
+    Fingerprint fingerprint() {
+        Map<Integer, Integer> renaming = renaming();
+        return new Fingerprint(renamed(A, renaming), renamed(S, renaming), alpha1, alpha2, cuts);
+    }
+    
+    private Map<Integer, Integer> renaming() {
+        Map<Integer, Integer> renaming = new HashMap<>();
+        for (AUT aut : A) {
+            renaming.putIfAbsent(aut.variable, renaming.size());
+        }
+        for (AUT aut : S) {
+            renaming.putIfAbsent(aut.variable, renaming.size());
+        }
+        return renaming;
+    }
+    
+    private static Set<AUT> renamed(Collection<AUT> auts, Map<Integer, Integer> renaming) {
+        Set<AUT> renamed = new HashSet<>();
+        for (AUT aut : auts) {
+            renamed.add(new AUT(renaming.get(aut.variable), aut.T1, aut.T2));
+        }
+        return renamed;
+    }
+    
+    /**
+     * Replays the derivation of <b>completion</b>, a linear descendant of <b>survivor</b>, on this config.
+     * <br>
+     * <b>survivor</b> has the same {@linkplain Config#fingerprint() fingerprint} as this config,
+     * so the result is the linear descendant of this config which corresponds to <b>completion</b>.
+     * <br><br>
+     * The variables of the survivor's AUTs are renamed to the matching variables of this config,
+     * and the variables introduced after the survivor are shifted to start at this config's fresh variable.
+     */
+    Config grafted(Config survivor, Config completion) {
+        Map<Integer, Integer> byIndex = new HashMap<>();
+        renaming().forEach((var, idx) -> byIndex.put(idx, var));
+        Map<Integer, Integer> fromSurvivor = new HashMap<>();
+        survivor.renaming().forEach((var, idx) -> fromSurvivor.put(var, byIndex.get(idx)));
+        int shift = freshVar - survivor.freshVar;
+        IntUnaryOperator rename = var -> {
+            if (var >= survivor.freshVar) {
+                return var + shift;
+            }
+            assert fromSurvivor.containsKey(var);
+            return fromSurvivor.get(var);
+        };
+        Config grafted = copy();
+        int skip = survivor.substitutions.size();
+        for (Substitution substitution : completion.substitutions) {
+            if (skip-- > 0) {
+                continue;
+            }
+            grafted.substitutions = grafted.substitutions.append(
+                    new Substitution(rename.applyAsInt(substitution.var), renamed(substitution.substitute, rename)));
+        }
+        grafted.A = PersistentQueue.empty();
+        grafted.S = PersistentQueue.of(Data.mapToList(completion.S, aut -> new AUT(rename.applyAsInt(aut.variable), aut.T1, aut.T2)));
+        grafted.alpha1 = completion.alpha1;
+        grafted.alpha2 = completion.alpha2;
+        grafted.cuts = completion.cuts;
+        grafted.freshVar = completion.freshVar + shift;
+        return grafted;
+    }
+    
+    private static Term renamed(Term term, IntUnaryOperator rename) {
+        if (term instanceof VariableTerm) {
+            return new VariableTerm(rename.applyAsInt(((VariableTerm) term).var));
+        }
+        if (term instanceof FunctionTerm) {
+            FunctionTerm functionTerm = (FunctionTerm) term;
+            return new FunctionTerm(functionTerm.head, Data.mapToList(functionTerm.arguments, arg -> renamed(arg, rename)));
+        }
+        return term;
+    }
+    
+    static class Fingerprint {
+        private final Set<AUT> A, S;
+        private final float alpha1, alpha2;
+        private final long cuts;
+        private final int hash;
+        
+        private Fingerprint(Set<AUT> A, Set<AUT> S, float alpha1, float alpha2, long cuts) {
+            this.A = A;
+            this.S = S;
+            this.alpha1 = alpha1;
+            this.alpha2 = alpha2;
+            this.cuts = cuts;
+            this.hash = (A.hashCode() * 31 + S.hashCode()) * 31 + Float.hashCode(alpha1 + alpha2);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Fingerprint)) {
+                return false;
+            }
+            Fingerprint that = (Fingerprint) obj;
+            return hash == that.hash && alpha1 == that.alpha1 && alpha2 == that.alpha2 && cuts == that.cuts
+                    && A.equals(that.A) && S.equals(that.S);
+        }
+    }
+    
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder().append(Substitution.applyAll(substitutions, VariableTerm.VAR_0));
@@ -81,7 +234,8 @@ class Config {
     
     @Override
     public int hashCode() {
-        return A.hashCode();
+        // linear configs all have an empty A and often the same S, so the substitutions are needed to tell them apart
+        return (A.hashCode() * 31 + S.hashCode()) * 31 + substitutions.hashCode();
     }
     
     @Override
@@ -93,6 +247,6 @@ class Config {
             return false;
         }
         Config that = (Config) object;
-        return that.A.size() == A.size() && that.S.size() == S.size() && that.A.containsAll(A) && that.S.containsAll(S);
+        return that.A.equals(A) && that.S.equals(S) && that.substitutions.equals(substitutions);
     }
 }
@@ -0,0 +1,107 @@
+package at.jku.risc.aau.impl;
+
+import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.util.ArraySet;
+import at.jku.risc.aau.util.Pair;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+/**
+ * Bounded cache for the special conjunction, which evicts the least recently used entries.
+ * <br><br>
+ * Conjunctions are ground, so they only depend on the fresh variable they start at through the number of variables they use.
+ * That number is stored as an offset, so an entry can be reused at any fresh variable.
+ * <br>
+ * A cached conjunction also answers consistency checks of the same set: it is consistent iff its conjunction is non-empty.
+ * <br><br>
+ * Safe to use from multiple threads.
+ */
+class ConjunctionCache {
+    private final Map<ArraySet<GroundTerm>, Pair<ArraySet<GroundTerm>, Integer>> conjunctions;
+    private final Map<ArraySet<GroundTerm>, Boolean> verdicts;
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+    
+    ConjunctionCache(int capacity) {
+        conjunctions = lru(capacity);
+        verdicts = lru(capacity);
+    }
+    
+    /**
+     * A map which evicts its least recently used entries once it holds more than <b>capacity</b>, and is safe to use from
+     * multiple threads.
+     */
+    static <K, V> Map<K, V> lru(int capacity) {
+        return Collections.synchronizedMap(new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+    
+    /**
+     * Looks up the conjunction of <b>terms</b> starting at <b>freshVar</b>, or computes it with <b>conjoin</b>.
+     */
+    Pair<ArraySet<GroundTerm>, Integer> conjoin(ArraySet<GroundTerm> terms, int freshVar,
+                                                BiFunction<ArraySet<GroundTerm>, Integer, Pair<ArraySet<GroundTerm>, Integer>> conjoin) {
+        Pair<ArraySet<GroundTerm>, Integer> cached = conjunctions.get(terms);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return Pair.of(cached.left, freshVar + cached.right);
+        }
+        misses.incrementAndGet();
+        Pair<ArraySet<GroundTerm>, Integer> result = conjoin.apply(terms, freshVar);
+        conjunctions.put(terms, Pair.of(result.left, result.right - freshVar));
+        return result;
+    }
+    
+    /**
+     * Looks up if <b>terms</b> are consistent, or checks it with <b>check</b>.
+     */
+    boolean consistent(ArraySet<GroundTerm> terms, Predicate<ArraySet<GroundTerm>> check) {
+        Boolean cached = verdict(terms);
+        if (cached != null) {
+            return cached;
+        }
+        boolean verdict = check.test(terms);
+        putVerdict(terms, verdict);
+        return verdict;
+    }
+    
+    /**
+     * Looks up if <b>terms</b> are consistent, or returns <b>null</b> if that isn't known yet.
+     */
+    Boolean verdict(ArraySet<GroundTerm> terms) {
+        Boolean cached = verdicts.get(terms);
+        if (cached == null) {
+            Pair<ArraySet<GroundTerm>, Integer> conjunction = conjunctions.get(terms);
+            cached = conjunction == null ? null : !conjunction.left.isEmpty();
+        }
+        if (cached != null) {
+            hits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+        }
+        return cached;
+    }
+    
+    /**
+     * Stores if <b>terms</b> are consistent, as decided outside of {@linkplain ConjunctionCache#consistent(ArraySet, Predicate)}.
+     */
+    void putVerdict(ArraySet<GroundTerm> terms, boolean verdict) {
+        verdicts.put(terms, verdict);
+    }
+    
+    long hits() {
+        return hits.get();
+    }
+    
+    long misses() {
+        return misses.get();
+    }
+}
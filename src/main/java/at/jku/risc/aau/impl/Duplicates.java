@@ -0,0 +1,94 @@
+package at.jku.risc.aau.impl;
+
+import at.jku.risc.aau.Problem;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Prunes the branches of a search which are duplicates of an already explored branch, see {@linkplain Problem#pruneDuplicates(boolean)}.
+ * <br><br>
+ * Branches with equal {@linkplain Config#fingerprint() fingerprints} only differ in their partial generalizations.
+ * Only the first of them (the <b>survivor</b>) is explored, and the others (the <b>aliases</b>) are dropped.
+ * <br>
+ * Once the search is done, the linear descendants of each survivor are {@linkplain Config#grafted(Config, Config) grafted}
+ * onto its aliases, so pruning doesn't lose any solutions.
+ * <br><br>
+ * Safe to use from multiple threads during the search.
+ */
+class Duplicates {
+    private final Map<Config.Fingerprint, Config> survivors = new ConcurrentHashMap<>();
+    private final Queue<Config> aliases = new ConcurrentLinkedQueue<>();
+    private final Queue<Config> linear = new ConcurrentLinkedQueue<>();
+    
+    /**
+     * Registers the new branch <b>child</b>.
+     *
+     * @return true if <b>child</b> is a duplicate, and doesn't need to be explored
+     */
+    boolean prune(Config child) {
+        Config.Fingerprint fingerprint = child.fingerprint();
+        // a snapshot, since the survivor itself is modified as it is explored
+        if (survivors.putIfAbsent(fingerprint, child.copy()) == null) {
+            child.lineage = child.lineage.append(fingerprint);
+            return false;
+        }
+        aliases.add(child);
+        return true;
+    }
+    
+    /**
+     * Registers the linear config <b>cfg</b>, which completes the survivors in its {@linkplain Config#lineage}.
+     */
+    void linear(Config cfg) {
+        // a snapshot, since post-processing may modify it
+        linear.add(cfg.copy());
+    }
+    
+    /**
+     * The linear configs of all pruned branches.
+     */
+    List<Config> grafted() {
+        Map<Config.Fingerprint, List<Config>> linearBySurvivor = bySurvivor(linear);
+        Map<Config.Fingerprint, List<Config>> aliasesBySurvivor = bySurvivor(aliases);
+        Map<Config, List<Config>> grafted = new IdentityHashMap<>();
+        List<Config> all = new ArrayList<>();
+        for (Config alias : aliases) {
+            all.addAll(grafted(alias, linearBySurvivor, aliasesBySurvivor, grafted));
+        }
+        return all;
+    }
+    
+    private List<Config> grafted(Config alias, Map<Config.Fingerprint, List<Config>> linearBySurvivor,
+                                 Map<Config.Fingerprint, List<Config>> aliasesBySurvivor, Map<Config, List<Config>> grafted) {
+        List<Config> done = grafted.get(alias);
+        if (done != null) {
+            return done;
+        }
+        Config.Fingerprint fingerprint = alias.fingerprint();
+        Config survivor = survivors.get(fingerprint);
+        // the survivor's subtree may contain aliases itself, whose linear configs are grafted first
+        // (this terminates, since a branch can't be a duplicate of one of its own ancestors)
+        List<Config> completions = new ArrayList<>(linearBySurvivor.getOrDefault(fingerprint, Collections.emptyList()));
+        for (Config nested : aliasesBySurvivor.getOrDefault(fingerprint, Collections.emptyList())) {
+            completions.addAll(grafted(nested, linearBySurvivor, aliasesBySurvivor, grafted));
+        }
+        List<Config> result = new ArrayList<>();
+        for (Config completion : completions) {
+            result.add(alias.grafted(survivor, completion));
+        }
+        grafted.put(alias, result);
+        return result;
+    }
+    
+    private static Map<Config.Fingerprint, List<Config>> bySurvivor(Collection<Config> configs) {
+        Map<Config.Fingerprint, List<Config>> bySurvivor = new HashMap<>();
+        for (Config cfg : configs) {
+            for (Config.Fingerprint fingerprint : cfg.lineage) {
+                bySurvivor.computeIfAbsent(fingerprint, key -> new ArrayList<>()).add(cfg);
+            }
+        }
+        return bySurvivor;
+    }
+}
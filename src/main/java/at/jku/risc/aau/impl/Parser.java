@@ -4,6 +4,8 @@ import at.jku.risc.aau.Problem;
 import at.jku.risc.aau.ProximityRelation;
 import at.jku.risc.aau.term.GroundTerm;
 import at.jku.risc.aau.term.MappedVariableTerm;
+import at.jku.risc.aau.term.TermArena;
+import at.jku.risc.aau.term.TermBank;
 import at.jku.risc.aau.util.ArraySet;
 import at.jku.risc.aau.util.Pair;
 import at.jku.risc.aau.util.Panic;
@@ -33,7 +35,9 @@ public class Parser {
         if (tokens.length != 2) {
             throw Panic.parse("Need 2 sides per equation, but got %s", tokens.length);
         }
-        return Pair.of(parseTerm(tokens[0]), parseTerm(tokens[1]));
+        // one bank for both sides, so they share their common sub-terms
+        TermBank bank = new TermBank();
+        return Pair.of(parseTerm(tokens[0], bank), parseTerm(tokens[1], bank));
     }
     
     /**
@@ -42,12 +46,12 @@ public class Parser {
      * See {@linkplain Problem#Problem(String) Problem(String equation)} for details.
      */
     public static GroundTerm parseTerm(String termString) {
+        return parseTerm(termString, new TermBank());
+    }
+    
+    private static GroundTerm parseTerm(String termString, TermBank bank) {
         termString = termString.replaceAll("\\s", "");
-        // split "f(g(a,b),c,d)" -> ["f(", "g(", "a", "b", ")", "c", "d", ")"]
-        // (?<=\() => if last char was '('
-        //       , => if this char is ','
-        //  (?=\)) => if next char is ')'
-        String[] tokens = termString.split("(?<=\\()|,|(?=\\))");
+        String[] tokens = tokenize(termString);
         
         Stack<GroundTermBuilder> subTerms = new Stack<>();
         subTerms.push(GroundTermBuilder.dummy());
@@ -58,7 +62,7 @@ public class Parser {
                 if (subTerms.isEmpty()) {
                     throw Panic.parse("Too many closing parentheses in term: %s", termString);
                 }
-                subTerms.peek().arguments.add(subTerm.build());
+                subTerms.peek().arguments.add(subTerm.build(bank));
                 continue;
             }
             if (token.endsWith("(")) {
@@ -69,7 +73,7 @@ public class Parser {
                 subTerms.push(new GroundTermBuilder(head));
                 continue;
             }
-            subTerms.peek().arguments.add(new MappedVariableTerm(token));
+            subTerms.peek().arguments.add(bank.intern(new MappedVariableTerm(token)));
         }
         if (subTerms.size() > 1) {
             throw Panic.parse("Unclosed parentheses in term: %s", termString);
@@ -82,6 +86,58 @@ public class Parser {
         return dummyTerm.arguments.get(0);
     }
     
+    /**
+     * Same syntax as {@linkplain Parser#parseTerm(String)}, but builds a {@linkplain TermArena} without creating the terms.
+     */
+    public static TermArena parseTermArena(String termString) {
+        termString = termString.replaceAll("\\s", "");
+        String[] tokens = tokenize(termString);
+        
+        TermArena.Builder arena = TermArena.builder();
+        int depth = 0, roots = 0;
+        for (String token : tokens) {
+            if (token.equals(")")) {
+                if (depth == 0) {
+                    throw Panic.parse("Too many closing parentheses in term: %s", termString);
+                }
+                arena.close();
+                depth--;
+                continue;
+            }
+            if (depth == 0 && roots++ > 0) {
+                throw Panic.parse("More than one top level term on one side: %s", termString);
+            }
+            if (token.endsWith("(")) {
+                String head = token.substring(0, token.length() - 1);
+                if (StringUtils.isBlank(head)) {
+                    throw Panic.parse("Missing function name in term: %s", termString);
+                }
+                arena.open(head);
+                depth++;
+                continue;
+            }
+            if (StringUtils.isBlank(token)) {
+                throw Panic.parse("Missing argument in term: %s", termString);
+            }
+            arena.variable(token);
+        }
+        if (depth > 0) {
+            throw Panic.parse("Unclosed parentheses in term: %s", termString);
+        }
+        if (roots == 0) {
+            throw Panic.parse("Missing term: %s", termString);
+        }
+        return arena.build();
+    }
+    
+    // split "f(g(a,b),c,d)" -> ["f(", "g(", "a", "b", ")", "c", "d", ")"]
+    // (?<=\() => if last char was '('
+    //       , => if this char is ','
+    //  (?=\)) => if next char is ')'
+    private static String[] tokenize(String termString) {
+        return termString.split("(?<=\\()|,|(?=\\))");
+    }
+    
     /**
      * Example input: {@code "f g [0.5] {(1 2) (2 1)} ; a b [0.8] {}"}
      * <br>
@@ -188,8 +244,8 @@ public class Parser {
             return new GroundTermBuilder();
         }
         
-        public GroundTerm build() {
-            GroundTerm t = new GroundTerm(head, arguments);
+        public GroundTerm build(TermBank bank) {
+            GroundTerm t = bank.intern(new GroundTerm(head, arguments));
             arguments = null;
             return t;
         }
@@ -2,8 +2,10 @@ package at.jku.risc.aau.impl;
 
 import at.jku.risc.aau.FuzzySystem;
 import at.jku.risc.aau.ProximityRelation;
+import at.jku.risc.aau.term.ArenaTerm;
 import at.jku.risc.aau.term.GroundTerm;
 import at.jku.risc.aau.term.MappedVariableTerm;
+import at.jku.risc.aau.term.TermArena;
 import at.jku.risc.aau.util.ArraySet;
 import at.jku.risc.aau.util.Data;
 import at.jku.risc.aau.util.Pair;
@@ -12,17 +14,39 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 
+/**
+ * {@linkplain FuzzySystem} defined by the problem's proximity relations and arities.
+ * <br><br>
+ * Each function/constant symbol gets a dense <b>int</b> id when the system is built,
+ * so the lookups during the {@linkplain Algorithm} are array reads:
+ * <ul>
+ *     <li> the arity of each symbol
+ *     <li> the proximity class of each symbol, as its proximates' ids in ascending order, along with the relations to them
+ *     <li> for small alphabets, the relation between any two symbols, as a dense matrix (built on first use)
+ * </ul>
+ * The String-based {@linkplain FuzzySystem} methods look up the ids of their symbols once.
+ * The {@linkplain Algorithm} resolves the ids of a term set once, and then uses the id-based methods in its loops.
+ */
 class PredefinedFuzzySystem implements FuzzySystem {
     
     private static final Logger log = LoggerFactory.getLogger(PredefinedFuzzySystem.class);
+    // n symbols take n^2 matrix entries, beyond this the proximity classes are searched instead
+    private static final int DENSE_MATRIX_MAX_SYMBOLS = 1024;
     
-    private final Map<String, Map<String, ProximityRelation>> proximityMap;
     private final Map<String, Integer> arities;
     private final RestrictionType restrictionType, practicalRestrictionType;
     
+    // *** symbol table ***
+    private final Map<String, Integer> ids = new HashMap<>();
+    private final String[] symbols;
+    private final int[] arityById;
+    private final int[][] proximateIds;
+    private final ProximityRelation[][] proximityClasses;
+    private volatile ProximityRelation[] matrix = null;
+    
     /**
      * Constructs a precomputed view of the problem described by the problem terms, relations and λ-cut.
      */
@@ -43,7 +67,24 @@ class PredefinedFuzzySystem implements FuzzySystem {
         removeProximitesBelowLambda(allProximityRelations, lambda);
         this.practicalRestrictionType = inferRestriction(allProximityRelations);
         
-        this.proximityMap = Collections.unmodifiableMap(buildMap(allProximityRelations));
+        Map<String, Map<String, ProximityRelation>> proximityMap = buildMap(allProximityRelations);
+        
+        // sorted, so the ids don't depend on hash order
+        symbols = proximityMap.keySet().stream().sorted().toArray(String[]::new);
+        int size = symbols.length;
+        arityById = new int[size];
+        for (int id = 0; id < size; id++) {
+            ids.put(symbols[id], id);
+            arityById[id] = arities.get(symbols[id]);
+        }
+        proximateIds = new int[size][];
+        proximityClasses = new ProximityRelation[size][];
+        for (int f = 0; f < size; f++) {
+            List<ProximityRelation> proximityClass = new ArrayList<>(proximityMap.get(symbols[f]).values());
+            proximityClass.sort(Comparator.comparingInt(relation -> ids.get(relation.g)));
+            proximateIds[f] = proximityClass.stream().mapToInt(relation -> ids.get(relation.g)).toArray();
+            proximityClasses[f] = proximityClass.toArray(new ProximityRelation[0]);
+        }
     }
     
     // *** public methods ***
@@ -59,13 +100,25 @@ class PredefinedFuzzySystem implements FuzzySystem {
     }
     
     /**
-     * Map of all proximates of function/constant 'f' to their respective proximity relation.
+     * Id of the function/constant 'f' in the symbol table, or <b>-1</b> for ANON and unknown symbols.
      * <br>
-     * <b>Undefined</b> for ANON.
+     * The methods by id are <b>undefined</b> for <b>-1</b>, so callers need to handle it first.
+     */
+    int id(String f) {
+        Integer id = ids.get(f);
+        return id == null ? -1 : id;
+    }
+    
+    /**
+     * Ids of the heads of <b>terms</b>, in iteration order.
      */
-    private Map<String, ProximityRelation> proximityClass(String f) {
-        assert proximityMap.containsKey(f);
-        return proximityMap.get(f);
+    int[] ids(Collection<GroundTerm> terms) {
+        int[] termIds = new int[terms.size()];
+        int idx = 0;
+        for (GroundTerm term : terms) {
+            termIds[idx++] = id(term.head);
+        }
+        return termIds;
     }
     
     /**
@@ -75,8 +128,42 @@ class PredefinedFuzzySystem implements FuzzySystem {
      */
     @Override
     public ProximityRelation proximityRelation(String f, String g) {
-        assert proximityMap.containsKey(g);
-        return proximityClass(f).get(g);
+        int fId = id(f), gId = id(g);
+        assert fId >= 0 && gId >= 0;
+        // no relation, like the sparse path - rather than the wrong cell of the matrix
+        return fId < 0 || gId < 0 ? null : proximityRelation(fId, gId);
+    }
+    
+    /**
+     * Same as {@linkplain PredefinedFuzzySystem#proximityRelation(String, String)}, by id.
+     */
+    ProximityRelation proximityRelation(int f, int g) {
+        ProximityRelation[] matrix = matrix();
+        if (matrix != null) {
+            return matrix[f * symbols.length + g];
+        }
+        int idx = Arrays.binarySearch(proximateIds[f], g);
+        return idx < 0 ? null : proximityClasses[f][idx];
+    }
+    
+    /**
+     * The dense matrix, or <b>null</b> if there are too many symbols for one.
+     * <br>
+     * Many systems are only built to check a few relations (e.g. for the cuts of a λ-sweep), so it is only built once it's needed.
+     */
+    private ProximityRelation[] matrix() {
+        ProximityRelation[] matrix = this.matrix;
+        int size = symbols.length;
+        if (matrix == null && size <= DENSE_MATRIX_MAX_SYMBOLS) {
+            matrix = new ProximityRelation[size * size];
+            for (int f = 0; f < size; f++) {
+                for (ProximityRelation relation : proximityClasses[f]) {
+                    matrix[f * size + ids.get(relation.g)] = relation;
+                }
+            }
+            this.matrix = matrix;
+        }
+        return matrix;
     }
     
     /**
@@ -86,12 +173,17 @@ class PredefinedFuzzySystem implements FuzzySystem {
      */
     @Override
     public int arity(String f) {
-        assert arities.containsKey(f);
-        return arities.get(f);
+        int id = id(f);
+        assert id >= 0;
+        return arityById[id];
+    }
+    
+    int arity(int f) {
+        return arityById[f];
     }
     
     private static final int PROXIMATES_MEMORY_MAX_SIZE = 3;
-    private final Map<ArraySet<String>, ArraySet<String>> proximatesMemory = new HashMap<>();
+    private final Map<ArraySet<String>, ArraySet<String>> proximatesMemory = new ConcurrentHashMap<>();
     
     /**
      * Finds all terms which are proximates of all terms in the given set.
@@ -99,6 +191,7 @@ class PredefinedFuzzySystem implements FuzzySystem {
      * <b>Undefined</b> for sets containing ANON.
      * <br><br>
      * Uses some rudimentary memoization, since we can often expect calls on the same sets of terms.
+     * (The memory is thread-safe, so branches can be explored in parallel.)
      */
     @Override
     public ArraySet<String> commonProximates(ArraySet<GroundTerm> terms) {
@@ -109,23 +202,45 @@ class PredefinedFuzzySystem implements FuzzySystem {
             return proximatesMemory.get(heads);
         }
         
-        Set<String> commonProximates = null;
+        int[] commonProximates = null;
         for (String head : heads) {
-            Stream<String> proximates = proximityClass(head).values().stream().map(relation -> relation.g);
-            if (commonProximates != null) {
-                commonProximates.retainAll(proximates.collect(Collectors.toList()));
-            } else { // first element
-                commonProximates = proximates.collect(Collectors.toSet());
-            }
+            int id = id(head);
+            assert id >= 0;
+            int[] proximates = proximateIds[id];
+            commonProximates = commonProximates == null ? proximates : intersect(commonProximates, proximates);
         }
         
-        ArraySet<String> result = ArraySet.of(commonProximates, true);
+        List<String> proximates = new ArrayList<>(commonProximates.length);
+        for (int id : commonProximates) {
+            proximates.add(symbols[id]);
+        }
+        ArraySet<String> result = ArraySet.of(proximates, true);
         if (heads.size() <= PROXIMATES_MEMORY_MAX_SIZE) {
             proximatesMemory.put(heads, result);
         }
         return result;
     }
     
+    /**
+     * Intersection of two ascending arrays of ids, in ascending order.
+     */
+    private static int[] intersect(int[] a, int[] b) {
+        int[] intersection = new int[Math.min(a.length, b.length)];
+        int size = 0;
+        for (int aIdx = 0, bIdx = 0; aIdx < a.length && bIdx < b.length; ) {
+            if (a[aIdx] < b[bIdx]) {
+                aIdx++;
+            } else if (a[aIdx] > b[bIdx]) {
+                bIdx++;
+            } else {
+                intersection[size++] = a[aIdx];
+                aIdx++;
+                bIdx++;
+            }
+        }
+        return Arrays.copyOf(intersection, size);
+    }
+    
     @Override
     public String toString() {
         return Data.str(compactView());
@@ -137,14 +252,12 @@ class PredefinedFuzzySystem implements FuzzySystem {
     public List<String> compactView() {
         List<String> view = new ArrayList<>();
         Set<String> listed = new HashSet<>();
-        for (String k : proximityMap.keySet()) {
-            if (listed.contains(k)) {
+        for (int id = 0; id < symbols.length; id++) {
+            if (listed.contains(symbols[id])) {
                 continue;
             }
-            listed.add(k);
-            List<ProximityRelation> list = proximityMap.get(k)
-                    .values()
-                    .stream()
+            listed.add(symbols[id]);
+            List<ProximityRelation> list = Arrays.stream(proximityClasses[id])
                     .filter(relation -> !listed.contains(relation.g))
                     .collect(Collectors.toList());
             if (!list.isEmpty()) {
@@ -158,7 +271,7 @@ class PredefinedFuzzySystem implements FuzzySystem {
      * Used for logging.
      */
     public List<String> fullView() {
-        return proximityMap.values().stream().map(map -> Data.str(map.values())).collect(Collectors.toList());
+        return Arrays.stream(proximityClasses).map(proximityClass -> Data.str(Arrays.asList(proximityClass))).collect(Collectors.toList());
     }
     
     // *** private methods used during construction ***
@@ -193,15 +306,17 @@ class PredefinedFuzzySystem implements FuzzySystem {
     ) {
         Set<String> mappedVariables = new HashSet<>();
         
-        inferAritiesFromTerm(lhs, definedArities, mappedVariables);
-        inferAritiesFromTerm(rhs, definedArities, mappedVariables);
+        // the problem's arities are shared by all its runs (and the λ-cuts of a sweep), so they must stay as defined
+        Map<String, Integer> termArities = new HashMap<>(definedArities);
+        inferAritiesFromTerm(lhs, termArities, mappedVariables);
+        inferAritiesFromTerm(rhs, termArities, mappedVariables);
         
-        Map<String, Integer> arities = new HashMap<>(definedArities);
+        Map<String, Integer> arities = new HashMap<>(termArities);
         for (ProximityRelation relation : proximityRelations) {
             if (mappedVariables.contains(relation.f)) {
                 throw Panic.arg("Variable '%s' can't be close to '%s'", relation.f, relation.g);
             }
-            if (definedArities.containsKey(relation.f) && definedArities.get(relation.f) < relation.argMapping.size()) {
+            if (termArities.containsKey(relation.f) && termArities.get(relation.f) < relation.argMapping.size()) {
                 throw Panic.arg("'%s' has a higher arity in its argument relation %s than defined",
                         relation.f,
                         relation);
@@ -215,30 +330,52 @@ class PredefinedFuzzySystem implements FuzzySystem {
      * Recursively infers arities from a term and all its sub-terms.
      */
     private void inferAritiesFromTerm(GroundTerm term, Map<String, Integer> arities, Set<String> mappedVariables) {
-        if (arities.containsKey(term.head)) {
-            if (arities.get(term.head) != term.arguments.size()) {
-                throw Panic.arg("'%s' is defined or appears in the posed problem with multiple arities", term.head);
+        if (term instanceof ArenaTerm) {
+            inferAritiesFromArena((ArenaTerm) term, arities, mappedVariables);
+            return;
+        }
+        inferArity(term.head, term.arguments.size(), term instanceof MappedVariableTerm, arities, mappedVariables);
+        for (GroundTerm arg : term.arguments) {
+            inferAritiesFromTerm(arg, arities, mappedVariables);
+        }
+    }
+    
+    /**
+     * Same as {@linkplain PredefinedFuzzySystem#inferAritiesFromTerm(GroundTerm, Map, Set)},
+     * but walks the nodes of the arena instead of the views.
+     */
+    private void inferAritiesFromArena(ArenaTerm term, Map<String, Integer> arities, Set<String> mappedVariables) {
+        TermArena arena = term.arena;
+        for (int node = term.node; node < arena.end(term.node); node++) {
+            inferArity(arena.head(node), arena.arity(node), arena.isVariable(node), arities, mappedVariables);
+        }
+    }
+    
+    private void inferArity(String head, int arity, boolean mappedVariable, Map<String, Integer> arities, Set<String> mappedVariables) {
+        if (arities.containsKey(head)) {
+            if (arities.get(head) != arity) {
+                throw Panic.arg("'%s' is defined or appears in the posed problem with multiple arities", head);
             }
-            if (mappedVariables.contains(term.head) != term instanceof MappedVariableTerm) {
-                throw Panic.arg("%s appears as both a variable and a function/const symbol", term.head);
+            if (mappedVariables.contains(head) != mappedVariable) {
+                throw Panic.arg("%s appears as both a variable and a function/const symbol", head);
             }
         } else { // first occurrence
-            arities.put(term.head, term.arguments.size());
-            if (term instanceof MappedVariableTerm) {
-                mappedVariables.add(term.head);
+            arities.put(head, arity);
+            if (mappedVariable) {
+                mappedVariables.add(head);
             }
         }
-        for (GroundTerm arg : term.arguments) {
-            inferAritiesFromTerm(arg, arities, mappedVariables);
-        }
     }
     
     /**
      * Infers the problem's {@linkplain RestrictionType} from the given relations.
      * <br><br>
-     * We don't actually need to use any of the optimisations mentioned in the paper -
-     * <br>
-     * however, we still get information about the kind of the generated generalization set.
+     * This tells us about the kind of the generated generalization set,
+     * and lets the {@linkplain Algorithm} take some shortcuts:
+     * <ul>
+     *     <li> with mapping relations, the arguments of a decomposition are always consistent
+     *     <li> with correspondence relations, there are no irrelevant positions, so ANON never needs special treatment
+     * </ul>
      */
     private RestrictionType inferRestriction(Collection<ProximityRelation> relations) {
         boolean correspondence = Data.all(relations, relation -> Data.none(relation.argMapping, Set::isEmpty));
@@ -266,9 +403,10 @@ class PredefinedFuzzySystem implements FuzzySystem {
     /**
      * Creates map representation of the given proximity relations.
      * <br><br>
-     * From it, we can retrieve the {@linkplain PredefinedFuzzySystem#proximityClass} of 'f' with <b>proximityRelations.get(f)</b>,
+     * The proximity class of 'f' is <b>proximityRelations.get(f)</b>,
+     * and the {@linkplain PredefinedFuzzySystem#proximityRelation(String, String)} of 'f' and 'g' is <b>proximityRelations.get(f).get(g)</b>.
      * <br>
-     * and the {@linkplain PredefinedFuzzySystem#proximityRelation(String, String)} of 'f' and 'g' with <b>proximityRelations.get(f).get(g)</b>.
+     * The symbol table is built from it.
      */
     private Map<String, Map<String, ProximityRelation>> buildMap(Collection<ProximityRelation> relations) {
         Map<String, Map<String, ProximityRelation>> map = new HashMap<>();
@@ -281,7 +419,7 @@ class PredefinedFuzzySystem implements FuzzySystem {
         }
         // add all relations that were computed from the stated relations
         for (ProximityRelation relation : relations) {
-            Data.pad(relation.argMapping, arity(relation.f), Collections::emptySet);
+            Data.pad(relation.argMapping, arities.get(relation.f), Collections::emptySet);
             map.get(relation.f).put(relation.g, relation);
         }
         return map;
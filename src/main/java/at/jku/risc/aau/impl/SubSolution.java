@@ -0,0 +1,110 @@
+package at.jku.risc.aau.impl;
+
+import at.jku.risc.aau.term.FunctionTerm;
+import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.term.Term;
+import at.jku.risc.aau.term.VariableTerm;
+import at.jku.risc.aau.util.ANSI;
+import at.jku.risc.aau.util.ArraySet;
+import at.jku.risc.aau.util.Data;
+import at.jku.risc.aau.util.PersistentQueue;
+
+/**
+ * {@linkplain SubSolution SubSolutions} are the memoized results of solving a single {@linkplain AUT} in isolation
+ * (see {@linkplain Algorithm#solveAUT(ArraySet, ArraySet, float, float)}), where:
+ * <ul>
+ *     <li> {@linkplain SubSolution#generalization} is the generalization of the AUT's terms
+ *     <li> {@linkplain SubSolution#S} is the set of fully generalized sub-terms
+ *     <li> {@linkplain SubSolution#alpha1} and {@linkplain SubSolution#alpha2} are the proximities reached,
+ *     including those of the context the AUT was solved in
+ * </ul>
+ * The variables of a {@linkplain SubSolution} are numbered locally from <b>0</b> to <b>vars - 1</b>,
+ * so it has to be {@linkplain SubSolution#shifted(int) shifted} when it is reused as part of a bigger solution.
+ */
+class SubSolution {
+    final Term generalization;
+    final PersistentQueue<AUT> S;
+    final float alpha1, alpha2;
+    final int vars;
+    
+    SubSolution(Term generalization, PersistentQueue<AUT> S, float alpha1, float alpha2, int vars) {
+        this.generalization = generalization;
+        this.S = S;
+        this.alpha1 = alpha1;
+        this.alpha2 = alpha2;
+        this.vars = vars;
+    }
+    
+    /**
+     * Renames all variables <b>x</b> to <b>x + offset</b>.
+     */
+    SubSolution shifted(int offset) {
+        if (offset == 0 || vars == 0) {
+            return this;
+        }
+        PersistentQueue<AUT> shiftedS = PersistentQueue.of(Data.mapToList(S, aut -> new AUT(aut.variable + offset, aut.T1, aut.T2)));
+        return new SubSolution(shifted(generalization, offset), shiftedS, alpha1, alpha2, vars);
+    }
+    
+    private static Term shifted(Term term, int offset) {
+        if (term instanceof VariableTerm) {
+            return new VariableTerm(((VariableTerm) term).var + offset);
+        }
+        if (term instanceof GroundTerm) {
+            return term;
+        }
+        FunctionTerm functionTerm = (FunctionTerm) term;
+        return new FunctionTerm(functionTerm.head, Data.mapToList(functionTerm.arguments, arg -> shifted(arg, offset)));
+    }
+    
+    /**
+     * Turns a solution of the problem's root AUT into the linear {@linkplain Config} it corresponds to.
+     */
+    Config toLinearConfig() {
+        SubSolution shifted = shifted(1); // 0 is reserved for the root variable
+        return new Config(shifted.generalization, shifted.S, alpha1, alpha2, vars + 1);
+    }
+    
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder().append(generalization);
+        if (!S.isEmpty()) {
+            sb.append(ANSI.yellow("  S.. ")).append(Data.str(S));
+        }
+        return sb.append(ANSI.yellow("  α..", alpha1, alpha2)).toString();
+    }
+    
+    /**
+     * Memo key of an AUT, solved in the context of the proximities <b>alpha1</b> and <b>alpha2</b>.
+     */
+    static class Key {
+        final ArraySet<GroundTerm> T1, T2;
+        final float alpha1, alpha2;
+        private final int hash;
+        
+        Key(ArraySet<GroundTerm> T1, ArraySet<GroundTerm> T2, float alpha1, float alpha2) {
+            this.T1 = T1;
+            this.T2 = T2;
+            this.alpha1 = alpha1;
+            this.alpha2 = alpha2;
+            this.hash = (T1.hashCode() * 31 + T2.hashCode()) * 31 + Float.hashCode(alpha1) * 17 + Float.hashCode(alpha2);
+        }
+        
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+        
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) obj;
+            return hash == that.hash && alpha1 == that.alpha1 && alpha2 == that.alpha2 && T1.equals(that.T1) && T2.equals(that.T2);
+        }
+    }
+}
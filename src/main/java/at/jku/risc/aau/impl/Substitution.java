@@ -4,11 +4,11 @@ import at.jku.risc.aau.term.FunctionTerm;
 import at.jku.risc.aau.term.GroundTerm;
 import at.jku.risc.aau.term.Term;
 import at.jku.risc.aau.term.VariableTerm;
-import at.jku.risc.aau.util.Data;
 import at.jku.risc.aau.util.Panic;
 
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Usually part of a chain of substitutions which will later be applied to a term.
@@ -22,11 +22,7 @@ public class Substitution {
         this.substitute = substitute;
     }
     
-    public static Term applyAll(Queue<Substitution> substitutions, Term baseTerm) {
-        if (substitutions.isEmpty()) {
-            return baseTerm;
-        }
-        substitutions = new ArrayDeque<>(substitutions);
+    public static Term applyAll(Collection<Substitution> substitutions, Term baseTerm) {
         Term term = baseTerm;
         for (Substitution substitution : substitutions) {
             term = substitution.apply(term);
@@ -37,7 +33,7 @@ public class Substitution {
     /**
      * Asserts at type level that there are no unsubstituted variables (besides ANON) remaining after substitution
      */
-    public static GroundTerm applyAllForceGroundTerm(Queue<Substitution> substitutions, Term baseTerm) {
+    public static GroundTerm applyAllForceGroundTerm(Collection<Substitution> substitutions, Term baseTerm) {
         Term term = applyAll(substitutions, baseTerm);
         try {
             return GroundTerm.force(term);
@@ -57,7 +53,19 @@ public class Substitution {
             throw Panic.state("Unknown Term type used in substitution: %s", term.getClass());
         }
         FunctionTerm functionTerm = (FunctionTerm) term;
-        return new FunctionTerm(functionTerm.head, Data.mapToList(functionTerm.arguments, this::apply));
+        // keep the term (so it stays shared) if the variable doesn't occur in it, and only copy the arguments once one changes
+        List<Term> arguments = null;
+        for (int idx = 0; idx < functionTerm.arguments.size(); idx++) {
+            Term argument = functionTerm.arguments.get(idx);
+            Term applied = apply(argument);
+            if (applied != argument && arguments == null) {
+                arguments = new ArrayList<>(functionTerm.arguments.subList(0, idx));
+            }
+            if (arguments != null) {
+                arguments.add(applied);
+            }
+        }
+        return arguments == null ? term : new FunctionTerm(functionTerm.head, arguments);
     }
     
     @Override
@@ -0,0 +1,76 @@
+package at.jku.risc.aau.term;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * {@linkplain GroundTerm} view of a function term stored in a {@linkplain TermArena}, at index {@linkplain ArenaTerm#node}.
+ * <br><br>
+ * The views of the arguments are only looked up when they are first accessed, and then kept.
+ * The arena has one view per node (see {@linkplain TermArena#view(int)}),
+ * so the views of a term form a tree which only covers the visited part of the arena.
+ * <br>
+ * {@linkplain ArenaTerm#hashCode()}, {@linkplain ArenaTerm#toString()} and {@linkplain ArenaTerm#equals(Object)}
+ * between views of arenas read the arena instead of visiting the arguments.
+ */
+public class ArenaTerm extends GroundTerm {
+    public final TermArena arena;
+    public final int node;
+    
+    ArenaTerm(TermArena arena, int node) {
+        super(arena.head(node), new Arguments(arena, node));
+        this.arena = arena;
+        this.node = node;
+    }
+    
+    @Override
+    public int hashCode() {
+        return arena.hash(node);
+    }
+    
+    @Override
+    public boolean equals(Object other) {
+        if (other instanceof ArenaTerm) {
+            ArenaTerm otherView = (ArenaTerm) other;
+            return arena.equal(node, otherView.arena, otherView.node);
+        }
+        return super.equals(other);
+    }
+    
+    @Override
+    public String toString() {
+        return arena.toString(node);
+    }
+    
+    private static class Arguments extends AbstractList<GroundTerm> implements RandomAccess {
+        private final TermArena arena;
+        private final int node;
+        private volatile GroundTerm[] views = null;
+        
+        Arguments(TermArena arena, int node) {
+            this.arena = arena;
+            this.node = node;
+        }
+        
+        @Override
+        public GroundTerm get(int index) {
+            GroundTerm[] views = this.views;
+            if (views == null) {
+                // all at once, since finding an argument means skipping over the ones before it
+                views = new GroundTerm[arena.arity(node)];
+                int argument = node + 1;
+                for (int idx = 0; idx < views.length; idx++) {
+                    views[idx] = arena.view(argument);
+                    argument = arena.end(argument);
+                }
+                this.views = views;
+            }
+            return views[index];
+        }
+        
+        @Override
+        public int size() {
+            return arena.arity(node);
+        }
+    }
+}
@@ -37,6 +37,8 @@ public class FunctionTerm implements Term {
     }
     
     private Integer hash = null;
+    // the id of the 'TermBank' this term is canonical in, or '0'
+    int bank = 0;
     
     @Override
     public int hashCode() {
@@ -55,6 +57,10 @@ public class FunctionTerm implements Term {
             return false;
         }
         FunctionTerm otherFunctionTerm = (FunctionTerm) other;
+        if (bank != 0 && bank == otherFunctionTerm.bank) {
+            // canonical terms of the same bank are only equal to themselves
+            return false;
+        }
         if (hashCode() != otherFunctionTerm.hashCode()) {
             return false;
         }
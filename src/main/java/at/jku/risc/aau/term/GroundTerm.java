@@ -55,6 +55,8 @@ public class GroundTerm implements Term {
     }
     
     private Integer hash = null;
+    // the id of the 'TermBank' this term is canonical in, or '0'
+    int bank = 0;
     
     @Override
     public int hashCode() {
@@ -76,6 +78,10 @@ public class GroundTerm implements Term {
             return false;
         }
         GroundTerm otherFunctionTerm = (GroundTerm) other;
+        if (bank != 0 && bank == otherFunctionTerm.bank) {
+            // canonical terms of the same bank are only equal to themselves
+            return false;
+        }
         if (hashCode() != otherFunctionTerm.hashCode()) {
             return false;
         }
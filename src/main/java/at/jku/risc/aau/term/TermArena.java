@@ -0,0 +1,367 @@
+package at.jku.risc.aau.term;
+
+import at.jku.risc.aau.util.Data;
+import at.jku.risc.aau.util.Panic;
+
+import java.util.*;
+
+/**
+ * Flat encoding of a {@linkplain GroundTerm} and all its sub-terms in a few int arrays, without an object per node.
+ * <br><br>
+ * Nodes are numbered in preorder, so the root is node <b>0</b>, the first argument of node <b>n</b> is <b>n + 1</b>,
+ * and the sub-term at <b>n</b> spans the nodes <b>n</b> to {@linkplain TermArena#end(int) end(n)} - 1.
+ * Each node stores its symbol id, arity, end offset and hash code.
+ * <br>
+ * Symbols are kept in a table, where variables and constants of the same name get different ids.
+ * <br><br>
+ * {@linkplain TermArena#view()} gives a {@linkplain GroundTerm} for the existing API.
+ * It only allocates the views of those sub-terms which are actually visited, and the arena keeps one view per node.
+ * So the arena only saves memory over plain {@linkplain GroundTerm GroundTerms} for the parts of the term
+ * which the algorithm doesn't visit - the visited views live as long as the arena.
+ * Equality, hashing, interning and arity inference work on the arena directly.
+ * <br><br>
+ * Build an arena with a {@linkplain Builder}, {@linkplain TermArena#of(GroundTerm)},
+ * or {@linkplain at.jku.risc.aau.impl.Parser#parseTermArena(String)}.
+ */
+public class TermArena {
+    private static final byte FUNCTION = 0, VARIABLE = 1, ANON = 2;
+    private static final Object CLOSE = new Object();
+    
+    private final String[] symbols;
+    private final byte[] kinds;
+    private final int[] symbol, arity, end, hash;
+    // allocated once the first view is needed, see 'view'
+    private volatile GroundTerm[] views = null;
+    
+    private TermArena(String[] symbols, byte[] kinds, int[] symbol, int[] arity, int[] end, int[] hash) {
+        this.symbols = symbols;
+        this.kinds = kinds;
+        this.symbol = symbol;
+        this.arity = arity;
+        this.end = end;
+        this.hash = hash;
+    }
+    
+    public static Builder builder() {
+        return new Builder();
+    }
+    
+    /**
+     * Flattens <b>term</b> into a new arena.
+     */
+    public static TermArena of(GroundTerm term) {
+        Builder builder = new Builder();
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(term);
+        while (!stack.isEmpty()) {
+            Object next = stack.pop();
+            if (next == CLOSE) {
+                builder.close();
+            } else if (next == MappedVariableTerm.ANON) {
+                builder.anon();
+            } else if (next instanceof MappedVariableTerm) {
+                builder.variable(((MappedVariableTerm) next).head);
+            } else {
+                GroundTerm groundTerm = (GroundTerm) next;
+                builder.open(groundTerm.head);
+                stack.push(CLOSE);
+                for (int idx = groundTerm.arguments.size() - 1; idx >= 0; idx--) {
+                    stack.push(groundTerm.arguments.get(idx));
+                }
+            }
+        }
+        return builder.build();
+    }
+    
+    // *** nodes ***
+    
+    /**
+     * The number of nodes, i.e. the size of the root term
+     */
+    public int size() {
+        return symbol.length;
+    }
+    
+    public int symbolId(int node) {
+        return symbol[node];
+    }
+    
+    public String head(int node) {
+        return symbols[symbol[node]];
+    }
+    
+    public int arity(int node) {
+        return arity[node];
+    }
+    
+    /**
+     * The node after the last node of the sub-term at <b>node</b>
+     */
+    public int end(int node) {
+        return end[node];
+    }
+    
+    /**
+     * The node of argument <b>idx</b> of <b>node</b>, found by skipping over the arguments before it.
+     */
+    public int argument(int node, int idx) {
+        if (idx < 0 || idx >= arity[node]) {
+            throw Panic.arg("Node %s has no argument %s", node, idx);
+        }
+        int argument = node + 1;
+        for (int skip = 0; skip < idx; skip++) {
+            argument = end[argument];
+        }
+        return argument;
+    }
+    
+    /**
+     * True if <b>node</b> is a {@linkplain MappedVariableTerm}, including ANON
+     */
+    public boolean isVariable(int node) {
+        return kinds[symbol[node]] != FUNCTION;
+    }
+    
+    public boolean isAnon(int node) {
+        return kinds[symbol[node]] == ANON;
+    }
+    
+    /**
+     * True if the sub-term at <b>node</b> contains ANON
+     */
+    public boolean containsAnon(int node) {
+        for (int idx = node; idx < end[node]; idx++) {
+            if (isAnon(idx)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * Same as the {@linkplain GroundTerm#hashCode()} of the sub-term at <b>node</b>
+     */
+    public int hash(int node) {
+        return hash[node];
+    }
+    
+    /**
+     * Same as {@linkplain GroundTerm#equals(Object)} for the sub-terms at <b>node1</b> and <b>node2</b>
+     * (also of <b>other</b> arena), without visiting their views.
+     */
+    public boolean equal(int node1, TermArena other, int node2) {
+        if (this == other && node1 == node2) {
+            return true;
+        }
+        if (hash[node1] != other.hash[node2] || end[node1] - node1 != other.end[node2] - node2) {
+            return false;
+        }
+        // same size and the same arity at each node means the same shape
+        for (int idx1 = node1, idx2 = node2; idx1 < end[node1]; idx1++, idx2++) {
+            if (isAnon(idx1) || other.isAnon(idx2)) {
+                // ANON only equals itself
+                if (!isAnon(idx1) || !other.isAnon(idx2)) {
+                    return false;
+                }
+            } else if (head(idx1) != other.head(idx2) || arity[idx1] != other.arity[idx2]) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    // *** symbols ***
+    
+    /**
+     * The number of distinct symbols
+     */
+    public int symbolCount() {
+        return symbols.length;
+    }
+    
+    public String symbol(int id) {
+        return symbols[id];
+    }
+    
+    // *** views ***
+    
+    /**
+     * A {@linkplain GroundTerm} view of the root term
+     */
+    public GroundTerm view() {
+        return view(0);
+    }
+    
+    /**
+     * The {@linkplain GroundTerm} view of the sub-term at <b>node</b>, created on the first call.
+     * <br>
+     * Variables are plain {@linkplain MappedVariableTerm MappedVariableTerms}, function terms are {@linkplain ArenaTerm ArenaTerms}.
+     * <br>
+     * Threads which race for the same node may each create a view, but all of them are equal.
+     */
+    public GroundTerm view(int node) {
+        GroundTerm[] views = this.views;
+        if (views == null) {
+            synchronized (this) {
+                views = this.views;
+                if (views == null) {
+                    views = new GroundTerm[symbol.length];
+                    this.views = views;
+                }
+            }
+        }
+        GroundTerm view = views[node];
+        if (view == null) {
+            switch (kinds[symbol[node]]) {
+                case ANON:
+                    view = MappedVariableTerm.ANON;
+                    break;
+                case VARIABLE:
+                    view = new MappedVariableTerm(head(node));
+                    break;
+                default:
+                    view = new ArenaTerm(this, node);
+            }
+            views[node] = view;
+        }
+        return view;
+    }
+    
+    /**
+     * Same as the {@linkplain GroundTerm#toString()} of the sub-term at <b>node</b>
+     */
+    public String toString(int node) {
+        StringBuilder sb = new StringBuilder();
+        // ends of the function terms whose arguments are being printed
+        int[] open = new int[16];
+        int depth = 0;
+        boolean first = true;
+        for (int idx = node; idx < end[node]; idx++) {
+            if (!first) {
+                sb.append(',');
+            }
+            sb.append(head(idx));
+            if (isVariable(idx)) {
+                first = false;
+            } else if (arity[idx] == 0) {
+                sb.append("()");
+                first = false;
+            } else {
+                sb.append('(');
+                if (depth == open.length) {
+                    open = Arrays.copyOf(open, 2 * depth);
+                }
+                open[depth++] = end[idx];
+                first = true;
+                continue;
+            }
+            while (depth > 0 && open[depth - 1] == idx + 1) {
+                sb.append(')');
+                depth--;
+            }
+        }
+        return sb.toString();
+    }
+    
+    @Override
+    public String toString() {
+        return toString(0);
+    }
+    
+    /**
+     * Builds a {@linkplain TermArena} in preorder: {@linkplain Builder#open(String)} a function term,
+     * add its arguments, then {@linkplain Builder#close()} it.
+     * <br>
+     * Constants are opened and closed right away.
+     */
+    public static class Builder {
+        private final List<String> symbols = new ArrayList<>();
+        private final List<Byte> kinds = new ArrayList<>();
+        // per kind, so variables and constants of the same name get different ids
+        private final List<Map<String, Integer>> ids = Data.list(3, kind -> new HashMap<>());
+        private int[] symbol = new int[16], arity = new int[16], end = new int[16], hash = new int[16];
+        private int size = 0, roots = 0;
+        // nodes which are opened, but not closed yet
+        private int[] open = new int[16];
+        private int depth = 0;
+        
+        private Builder() {
+        }
+        
+        public Builder open(String head) {
+            open = ensure(open, depth + 1);
+            open[depth++] = add(head, FUNCTION);
+            return this;
+        }
+        
+        public Builder close() {
+            if (depth == 0) {
+                throw Panic.state("No open function term to close");
+            }
+            int node = open[--depth];
+            end[node] = size;
+            int argumentsHash = 1;
+            for (int argument = node + 1; argument < size; argument = end[argument]) {
+                arity[node]++;
+                argumentsHash = 31 * argumentsHash + hash[argument];
+            }
+            hash[node] = symbols.get(symbol[node]).hashCode() + 31 * argumentsHash;
+            return this;
+        }
+        
+        /**
+         * Adds a {@linkplain MappedVariableTerm}
+         */
+        public Builder variable(String name) {
+            close(add(name, VARIABLE));
+            return this;
+        }
+        
+        /**
+         * Adds {@linkplain MappedVariableTerm#ANON}
+         */
+        public Builder anon() {
+            close(add(MappedVariableTerm.ANON.head, ANON));
+            return this;
+        }
+        
+        private void close(int leaf) {
+            end[leaf] = size;
+            hash[leaf] = symbols.get(symbol[leaf]).hashCode() + 31;
+        }
+        
+        private int add(String head, byte kind) {
+            if (depth == 0 && roots++ > 0) {
+                throw Panic.state("An arena holds a single root term");
+            }
+            int node = size++;
+            symbol = ensure(symbol, size);
+            arity = ensure(arity, size);
+            end = ensure(end, size);
+            hash = ensure(hash, size);
+            // only new symbols are interned, since 'equal' compares heads by reference
+            symbol[node] = ids.get(kind).computeIfAbsent(head, key -> {
+                symbols.add(key.intern());
+                kinds.add(kind);
+                return symbols.size() - 1;
+            });
+            return node;
+        }
+        
+        private static int[] ensure(int[] array, int size) {
+            return size <= array.length ? array : Arrays.copyOf(array, Math.max(size, 2 * array.length));
+        }
+        
+        public TermArena build() {
+            if (depth > 0 || size == 0) {
+                throw Panic.state("Can't build an arena with %s", size == 0 ? "no term" : depth + " unclosed function terms");
+            }
+            byte[] kindArray = new byte[kinds.size()];
+            for (int idx = 0; idx < kindArray.length; idx++) {
+                kindArray[idx] = kinds.get(idx);
+            }
+            return new TermArena(symbols.toArray(new String[0]), kindArray,
+                    Arrays.copyOf(symbol, size), Arrays.copyOf(arity, size), Arrays.copyOf(end, size), Arrays.copyOf(hash, size));
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package at.jku.risc.aau.term;
+
+import at.jku.risc.aau.util.Data;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hash-consing for {@linkplain GroundTerm GroundTerms} and {@linkplain FunctionTerm FunctionTerms}:
+ * {@linkplain TermBank#intern(Term)} returns one canonical instance per distinct term.
+ * <br><br>
+ * Terms are interned bottom-up, so the arguments of a canonical term are canonical themselves.
+ * Equal sub-terms are then the same object, which means they share memory.
+ * <br>
+ * Each term remembers the bank it is canonical in, so {@linkplain Object#equals(Object) equals} between two canonical terms
+ * of the same bank is decided by reference. Terms which weren't interned (or were interned in another bank)
+ * still compare equal to canonical ones, it's just slower.
+ * <br><br>
+ * A bank is scoped to whatever uses it - e.g. one per parsed equation, and one per run of the
+ * {@linkplain at.jku.risc.aau.impl.Algorithm Algorithm} - so concurrent solves don't contend for it,
+ * and its terms can be collected along with it.
+ * <br>
+ * All access is thread-safe.
+ * <br><br>
+ * {@linkplain ArenaTerm ArenaTerms} are left out: each node of their arena already has a single view,
+ * and interning them would visit the whole arena.
+ */
+public class TermBank {
+    private static final AtomicInteger banks = new AtomicInteger();
+    // '0' marks terms which aren't canonical in any bank
+    final int id = banks.updateAndGet(last -> last == Integer.MAX_VALUE ? 1 : last + 1);
+    private final Map<Term, Term> terms = new ConcurrentHashMap<>();
+    
+    /**
+     * The canonical instance of <b>term</b>, assuming its arguments are canonical already.
+     * <br>
+     * {@linkplain VariableTerm VariableTerms}, ANON and {@linkplain ArenaTerm ArenaTerms} are returned as they are.
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends Term> T intern(T term) {
+        if (term instanceof VariableTerm || term == MappedVariableTerm.ANON || term instanceof ArenaTerm) {
+            return term;
+        }
+        Term canonical = terms.putIfAbsent(term, term);
+        if (canonical == null) {
+            if (term instanceof GroundTerm) {
+                ((GroundTerm) term).bank = id;
+            } else {
+                ((FunctionTerm) term).bank = id;
+            }
+            return term;
+        }
+        return interchangeable(canonical, term) ? (T) canonical : term;
+    }
+    
+    /**
+     * A {@linkplain MappedVariableTerm} equals the constant of the same name, but they aren't interchangeable
+     * - and neither are terms which contain them in the same position.
+     */
+    private static boolean interchangeable(Term canonical, Term term) {
+        if (canonical.getClass() != term.getClass()) {
+            return false;
+        }
+        if (term instanceof GroundTerm) {
+            return Data.identical(((GroundTerm) canonical).arguments, ((GroundTerm) term).arguments);
+        }
+        return Data.identical(((FunctionTerm) canonical).arguments, ((FunctionTerm) term).arguments);
+    }
+    
+    /**
+     * The canonical instance of <b>term</b>, interning its arguments first.
+     */
+    public Term internAll(Term term) {
+        if (term instanceof GroundTerm) {
+            return internAll((GroundTerm) term);
+        }
+        if (term instanceof FunctionTerm) {
+            FunctionTerm functionTerm = (FunctionTerm) term;
+            List<Term> arguments = Data.mapToList(functionTerm.arguments, this::internAll);
+            return intern(Data.identical(arguments, functionTerm.arguments) ? functionTerm : new FunctionTerm(functionTerm.head, arguments));
+        }
+        return term;
+    }
+    
+    public GroundTerm internAll(GroundTerm term) {
+        if (term.arguments.isEmpty() || term instanceof ArenaTerm) {
+            return intern(term);
+        }
+        List<GroundTerm> arguments = Data.mapToList(term.arguments, this::internAll);
+        return intern(Data.identical(arguments, term.arguments) ? term : new GroundTerm(term.head, arguments));
+    }
+}
@@ -50,6 +50,21 @@ public class Data {
     
     // *** Checks, retrievals ***
     
+    /**
+     * If both lists contain the very same objects, in the same order
+     */
+    public static <E> boolean identical(List<? extends E> a, List<? extends E> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int idx = 0; idx < a.size(); idx++) {
+            if (a.get(idx) != b.get(idx)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
     public static <E> boolean isSet(Collection<E> collection) {
         Set<E> occurred = new HashSet<>();
         for (E element : collection) {
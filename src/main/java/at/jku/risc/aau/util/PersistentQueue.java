@@ -0,0 +1,171 @@
+package at.jku.risc.aau.util;
+
+import java.util.*;
+
+/**
+ * Immutable FIFO queue, where {@linkplain PersistentQueue#append(Object) append} and {@linkplain PersistentQueue#tail() tail}
+ * return new queues which share their structure with the original.
+ * <br>
+ * This means "copying" a queue is free, so branching states can share their history with their parent.
+ * <br><br>
+ * Implemented as a pair of cons lists: the <b>front</b> in queue order, and the <b>back</b> in reverse order.
+ * Once the front is used up, the back is reversed to become the new front.
+ * <br>
+ * <b>null</b> elements are undefined.
+ */
+public class PersistentQueue<E> extends AbstractCollection<E> {
+    private static final PersistentQueue<?> EMPTY = new PersistentQueue<>(null, null, 0);
+    
+    // invariant: front is only null if the queue is empty
+    private final Cons<E> front, back;
+    private final int size;
+    private Integer hash = null;
+    
+    private PersistentQueue(Cons<E> front, Cons<E> back, int size) {
+        this.front = front;
+        this.back = back;
+        this.size = size;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentQueue<E> empty() {
+        return (PersistentQueue<E>) EMPTY;
+    }
+    
+    @SuppressWarnings("unchecked")
+    public static <E> PersistentQueue<E> of(Collection<E> collection) {
+        if (collection instanceof PersistentQueue) {
+            return (PersistentQueue<E>) collection;
+        }
+        Object[] elements = collection.toArray();
+        Cons<E> front = null;
+        for (int idx = elements.length - 1; idx >= 0; idx--) {
+            front = new Cons<>((E) elements[idx], front);
+        }
+        return new PersistentQueue<>(front, null, elements.length);
+    }
+    
+    public static <E> PersistentQueue<E> singleton(E element) {
+        return new PersistentQueue<>(new Cons<>(element, null), null, 1);
+    }
+    
+    public PersistentQueue<E> append(E element) {
+        if (front == null) {
+            return singleton(element);
+        }
+        return new PersistentQueue<>(front, new Cons<>(element, back), size + 1);
+    }
+    
+    public E head() {
+        if (front == null) {
+            throw new NoSuchElementException();
+        }
+        return front.element;
+    }
+    
+    public PersistentQueue<E> tail() {
+        if (front == null) {
+            throw new NoSuchElementException();
+        }
+        if (front.next != null) {
+            return new PersistentQueue<>(front.next, back, size - 1);
+        }
+        return new PersistentQueue<>(Cons.reversed(back), null, size - 1);
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public boolean isEmpty() {
+        return front == null;
+    }
+    
+    // *** equals/hashCode ***
+    
+    /**
+     * Two queues are equal if they contain equal elements in the same order.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof PersistentQueue)) {
+            return false;
+        }
+        PersistentQueue<?> other = (PersistentQueue<?>) obj;
+        if (size != other.size || hashCode() != other.hashCode()) {
+            return false;
+        }
+        Iterator<?> otherIterator = other.iterator();
+        for (E element : this) {
+            if (!element.equals(otherIterator.next())) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    @Override
+    public int hashCode() {
+        if (hash == null) {
+            hash = 0;
+            for (E element : this) {
+                hash = hash * 31 + element.hashCode();
+            }
+        }
+        return hash;
+    }
+    
+    // *** iterator ***
+    
+    @Override
+    public Iterator<E> iterator() {
+        return new QueueIterator();
+    }
+    
+    private class QueueIterator implements Iterator<E> {
+        Cons<E> cursor = front;
+        boolean inBack = false;
+        
+        @Override
+        public boolean hasNext() {
+            if (cursor == null && !inBack) {
+                cursor = Cons.reversed(back);
+                inBack = true;
+            }
+            return cursor != null;
+        }
+        
+        @Override
+        public E next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            E element = cursor.element;
+            cursor = cursor.next;
+            return element;
+        }
+    }
+    
+    private static class Cons<E> {
+        final E element;
+        final Cons<E> next;
+        
+        Cons(E element, Cons<E> next) {
+            this.element = element;
+            this.next = next;
+        }
+        
+        static <E> Cons<E> reversed(Cons<E> list) {
+            Cons<E> reversed = null;
+            for (Cons<E> cons = list; cons != null; cons = cons.next) {
+                reversed = new Cons<>(cons.element, reversed);
+            }
+            return reversed;
+        }
+    }
+}
@@ -1,16 +1,42 @@
 package at.jku.risc.aau;
 
 import at.jku.risc.aau.impl.Algorithm;
+import at.jku.risc.aau.impl.Parser;
+import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.term.VariableTerm;
+import at.jku.risc.aau.util.ArraySet;
 import at.jku.risc.aau.util.Data;
 import at.jku.risc.aau.util.Pair;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.core.Logger;
 import org.apache.logging.slf4j.Log4jLogger;
+import org.junit.jupiter.api.Named;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Field;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.SortedMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Random;
 import java.util.Set;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class AlgorithmTest {
     public static String bigEquation() { // |f| = 2  |g| = 3  |h| = 3
@@ -58,6 +84,478 @@ public class AlgorithmTest {
         TestUtils.verify(problem);
     }
     
+    /**
+     * Settings which change how the solutions are found, but not which ones.
+     */
+    private static Stream<Named<UnaryOperator<Problem>>> modes() {
+        return Stream.of(
+                Named.of("parallelism(4)", problem -> problem.parallelism(4)),
+                Named.of("pipeline(2, 2)", problem -> problem.pipeline(2, 2)),
+                Named.of("pipeline(1, 3) parallelism(4)", problem -> problem.pipeline(1, 3).parallelism(4)),
+                Named.of("depthFirst", problem -> problem.depthFirst(true)),
+                Named.of("pruneDuplicates", problem -> problem.pruneDuplicates(true)),
+                Named.of("pruneDuplicates parallelism(4)", problem -> problem.pruneDuplicates(true).parallelism(4)),
+                Named.of("memoize", problem -> problem.memoize(true)),
+                Named.of("factorize", problem -> problem.factorize(true)),
+                Named.of("conjunctionCacheSize(0)", problem -> problem.conjunctionCacheSize(0)),
+                Named.of("conjunctionCacheSize(1)", problem -> problem.conjunctionCacheSize(1)),
+                Named.of("lazyWitnesses", problem -> problem.lazyWitnesses(true)),
+                Named.of("beamWidth(MAX_VALUE)", problem -> problem.beamWidth(Integer.MAX_VALUE)));
+    }
+    
+    /**
+     * A fresh instance per call, since the settings modify the problem.
+     */
+    private static Stream<Named<Supplier<Problem>>> problems() {
+        return Stream.of(
+                // enumerating all witnesses of the big problem takes too long, so only their counts are compared
+                Named.of("big", () -> new Problem(bigEquation()).proximityRelations(bigRelations()).lambda(0.5f)
+                        .witnesses(WitnessPolicy.COUNT)),
+                Named.of("medium", () -> new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                        .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                        .lambda(0.5f)),
+                Named.of("small", () -> new Problem("f(a(), b()) ?= g(a(), c(), d())")
+                        .proximityRelations("b c [0.5] {} ; c d [0.6] {} ; h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3}")
+                        .lambda(0.5f)),
+                // 'h' and 'k' decompose both sides the same way, so their branches are duplicates
+                Named.of("duplicates", () -> new Problem("f(f(x, b()), c()) ?= g(g(x, b()), c())")
+                        .proximityRelations("f h [0.7] {1 1, 2 2} ; g h [0.7] {1 1, 2 2} ; f k [0.7] {1 1, 2 2} ; g k [0.7] {1 1, 2 2}")
+                        .lambda(0.5f)),
+                // lambda cuts some combinations of the arguments' solutions
+                Named.of("cut", () -> new Problem("f(a(), a()) ?= f(b(), b())")
+                        .proximityRelations("a b [0.8] {}")
+                        .tNorm((a, b) -> a * b)
+                        .lambda(0.7f)));
+    }
+    
+    private static Stream<Arguments> modesAndProblems() {
+        return modes().flatMap(mode -> problems().flatMap(problem ->
+                Stream.of(false, true).map(merge -> Arguments.of(mode, problem, merge))));
+    }
+    
+    @ParameterizedTest(name = "{0}, {1}, merge={2}")
+    @MethodSource("modesAndProblems")
+    public void sameSolutions(UnaryOperator<Problem> mode, Supplier<Problem> problem, boolean merge) {
+        Set<String> expected = TestUtils.canonicalWithWitnesses(TestUtils.verify(problem.get().merge(merge)));
+        assert !expected.isEmpty();
+        assert expected.equals(TestUtils.canonicalWithWitnesses(TestUtils.verify(mode.apply(problem.get().merge(merge)))));
+    }
+    
+    @Test
+    @Timeout(30)
+    public void pipelineWorkerError() {
+        // 3^6 linear configs, more than the pipeline's queues hold
+        String lhs = String.join(", ", Collections.nCopies(6, "h(a(), b(), c())"));
+        String rhs = String.join(", ", Collections.nCopies(6, "f(a(), c())"));
+        Problem problem = new Problem(String.format("k(%s) ?= k(%s)", lhs, rhs)).lambda(0.5f).witnesses(false).pipeline(1, 1);
+        Thread caller = Thread.currentThread();
+        // the search runs on the calling thread, so only the expand worker fails - like a broken assert would
+        problem.customFuzzySystem(new UnrestrictedFuzzySystem(problem.getEquation(), bigRelations()) {
+            @Override
+            public ArraySet<String> commonProximates(ArraySet<GroundTerm> terms) {
+                if (Thread.currentThread() != caller) {
+                    throw new AssertionError("expand worker failed");
+                }
+                return super.commonProximates(terms);
+            }
+        });
+        try {
+            problem.solve();
+            assert false;
+        } catch (AssertionError e) {
+            assert "expand worker failed".equals(e.getMessage());
+        }
+    }
+    
+    @Test
+    public void lazy() {
+        Problem problem = new Problem(bigEquation()).proximityRelations(bigRelations()).lambda(0.5f).witnesses(false);
+        Set<String> solved = TestUtils.canonical(problem.solve());
+        assert solved.equals(TestUtils.canonical(problem.stream().collect(Collectors.toList())));
+        
+        List<Solution> first = problem.stream().limit(1).collect(Collectors.toList());
+        assert first.size() == 1 && solved.containsAll(TestUtils.canonical(first));
+    }
+    
+    @Test
+    public void pruneDuplicates() {
+        // 'h' and 'k' decompose both sides the same way, so their branches only differ in the head, at the root and at 'x1'
+        Problem duplicates = new Problem("f(f(x, b()), c()) ?= g(g(x, b()), c())")
+                .proximityRelations("f h [0.7] {1 1, 2 2} ; g h [0.7] {1 1, 2 2} ; f k [0.7] {1 1, 2 2} ; g k [0.7] {1 1, 2 2}")
+                .lambda(0.5f);
+        assert TestUtils.verify(duplicates).size() == 4;
+        Algorithm algorithm = new Algorithm(duplicates.pruneDuplicates(true));
+        assert algorithm.run().size() == 4;
+        assert algorithm.prunedBranches() == 2;
+        assert Algorithm.sweeping(duplicates, 0.5f, 0.7f).sweep().get(0.7f).size() == 4;
+    }
+    
+    @Test
+    public void memoize() {
+        Problem medium = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                .lambda(0.5f)
+                .memoize(true);
+        // the memo only holds for one run, so running again solves the same sub-problems again
+        Algorithm algorithm = new Algorithm(medium);
+        Set<Solution> first = algorithm.run();
+        int memoHits = algorithm.memoHits();
+        assert TestUtils.canonicalWithWitnesses(first).equals(TestUtils.canonicalWithWitnesses(algorithm.run()));
+        assert algorithm.memoHits() == memoHits;
+    }
+    
+    @Test
+    public void topK() {
+        Problem big = new Problem(bigEquation()).proximityRelations(bigRelations()).lambda(0.5f).witnesses(false);
+        Set<Solution> all = big.solve();
+        for (int k : new int[]{1, 5, all.size(), all.size() + 1}) {
+            List<Solution> best = big.topK(k);
+            assert best.size() == Math.min(k, all.size());
+            assert TestUtils.canonical(all).containsAll(TestUtils.canonical(best));
+            List<Float> expected = all.stream().map(s -> Math.min(s.alpha1, s.alpha2))
+                    .sorted(Comparator.reverseOrder()).limit(k).collect(Collectors.toList());
+            assert expected.equals(Data.mapToList(best, s -> Math.min(s.alpha1, s.alpha2)));
+        }
+    }
+    
+    @Test
+    public void beam() {
+        Problem big = new Problem(bigEquation()).proximityRelations(bigRelations()).lambda(0.5f).witnesses(false);
+        Set<String> exact = TestUtils.canonical(TestUtils.verify(big));
+        
+        Set<Solution> wide = big.beamWidth(Integer.MAX_VALUE).solve();
+        assert exact.equals(TestUtils.canonical(wide));
+        assert wide.stream().noneMatch(solution -> solution.approximate);
+        
+        Set<Solution> narrow = big.beamWidth(1).solve();
+        assert !narrow.isEmpty() && exact.containsAll(TestUtils.canonical(narrow));
+        assert narrow.stream().allMatch(solution -> solution.approximate);
+        
+        // post-processed on the pipeline threads
+        Set<Solution> pipelined = big.pipeline(2, 2).solve();
+        assert TestUtils.canonical(narrow).equals(TestUtils.canonical(pipelined));
+        assert pipelined.stream().allMatch(solution -> solution.approximate);
+    }
+    
+    @Test
+    public void budgets() {
+        Problem big = new Problem(bigEquation()).proximityRelations(bigRelations()).lambda(0.5f).witnesses(false);
+        Set<String> exact = TestUtils.canonical(big.solve());
+        
+        Algorithm limited = new Algorithm(big.maxConfigs(3));
+        Set<Solution> partial = limited.run();
+        assert limited.status() == Status.MAX_CONFIGS;
+        assert exact.containsAll(TestUtils.canonical(partial));
+        // running again starts with a fresh budget
+        assert TestUtils.canonical(partial).equals(TestUtils.canonical(limited.run()));
+        assert limited.status() == Status.MAX_CONFIGS;
+        Pair<Set<Solution>, Status> withStatus = big.solveWithStatus();
+        assert withStatus.right == Status.MAX_CONFIGS && TestUtils.canonical(withStatus.left).equals(TestUtils.canonical(partial));
+        assert new Problem(bigEquation()).proximityRelations(bigRelations()).lambda(0.5f).solveWithStatus().right == Status.COMPLETE;
+        
+        Algorithm stepwise = new Algorithm(big.maxConfigs(3));
+        Iterator<Solution> iterator = stepwise.iterator();
+        List<Solution> iterated = new ArrayList<>();
+        try {
+            // without asking 'hasNext' first
+            while (true) {
+                iterated.add(iterator.next());
+            }
+        } catch (NoSuchElementException e) {
+            assert stepwise.status() == Status.MAX_CONFIGS;
+        }
+        assert exact.containsAll(TestUtils.canonical(iterated));
+        
+        Algorithm parallel = new Algorithm(big.parallelism(4));
+        assert exact.containsAll(TestUtils.canonical(parallel.run()));
+        assert parallel.status() == Status.MAX_CONFIGS;
+        
+        Algorithm cancelled = new Algorithm(big.maxConfigs(0).parallelism(1));
+        cancelled.cancel();
+        assert cancelled.run().isEmpty();
+        assert cancelled.status() == Status.CANCELLED;
+        
+        // the budget runs out while generating witnesses
+        Problem witnesses = new Problem("f(a(), b()) ?= g(c(), d())")
+                .proximityRelations("f g [0.8] {1 1, 2 2} ; a c [0.7] {}")
+                .lambda(0.5f)
+                .maxConjunctionBranches(1);
+        Algorithm unprocessed = new Algorithm(witnesses);
+        Set<Solution> solutions = unprocessed.run();
+        assert unprocessed.status() == Status.MAX_CONJUNCTION_BRANCHES;
+        assert !solutions.isEmpty() && solutions.stream().noneMatch(Solution::hasWitnesses);
+    }
+    
+    @Test
+    public void sweep() {
+        float[] lambdas = {0.9f, 0.3f, 0.5f, 0.7f, 0.6f};
+        Problem big = new Problem(bigEquation()).proximityRelations(bigRelations()).witnesses(false);
+        Problem medium = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}");
+        Problem variables = new Problem("f(x, a()) ?= f(x, b())").proximityRelations("a b [0.6] {}");
+        for (Problem problem : new Problem[]{big, medium, variables}) {
+            SortedMap<Float, Set<Solution>> sweep = problem.solveSweep(lambdas);
+            assert sweep.size() == lambdas.length;
+            for (float lambda : lambdas) {
+                Set<Solution> expected = TestUtils.verify(problem.lambda(lambda));
+                assert TestUtils.canonical(expected).equals(TestUtils.canonical(sweep.get(lambda)));
+            }
+        }
+        
+        // all cuts count against the same budget
+        Algorithm limited = Algorithm.sweeping(big.maxConjunctionBranches(3), lambdas);
+        limited.sweep();
+        assert limited.status() == Status.MAX_CONJUNCTION_BRANCHES;
+        
+        Algorithm cancelled = Algorithm.sweeping(medium, lambdas);
+        cancelled.cancel();
+        assert cancelled.sweep().values().stream().allMatch(Set::isEmpty);
+        assert cancelled.status() == Status.CANCELLED;
+    }
+    
+    @Test
+    public void maxNonTrivialLambda() {
+        Problem big = new Problem(bigEquation()).proximityRelations(bigRelations()).witnesses(false);
+        Problem medium = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}");
+        Problem variables = new Problem("f(x, a()) ?= f(x, b())").proximityRelations("a b [0.6] {}");
+        Problem trivial = new Problem("f(a()) ?= g(a())");
+        for (Problem problem : new Problem[]{big, medium, variables, trivial}) {
+            float max = problem.lambda(0.1f).maxNonTrivialLambda();
+            if (max == 0.0f) {
+                assert problem.solve().stream().allMatch(solution -> solution.generalization instanceof VariableTerm);
+                continue;
+            }
+            assert problem.lambda(max).solve().stream().anyMatch(solution -> !(solution.generalization instanceof VariableTerm));
+            if (max < 1.0f) {
+                float above = Math.nextUp(max);
+                assert problem.lambda(above).solve().stream().allMatch(solution -> solution.generalization instanceof VariableTerm);
+            }
+        }
+    }
+    
+    @Test
+    public void conjunctionCache() {
+        Problem problem = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                .lambda(0.5f)
+                .merge(true);
+        Algorithm cached = new Algorithm(problem.conjunctionCacheSize(4096));
+        cached.run();
+        assert cached.conjunctionCacheHits() > 0;
+    }
+    
+    @Test
+    public void lazyWitnesses() {
+        for (boolean merge : new boolean[]{false, true}) {
+            Problem problem = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                    .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                    .lambda(0.5f)
+                    .merge(merge);
+            Set<Solution> lazy = TestUtils.verify(problem.lazyWitnesses(true));
+            assert !lazy.isEmpty();
+            // verify() read them all
+            assert Data.all(lazy, Solution::hasWitnesses);
+            
+            Set<Solution> unread = problem.solve();
+            assert Data.none(unread, Solution::hasWitnesses);
+        }
+    }
+    
+    @Test
+    public void instances() {
+        Problem problem = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                .lambda(0.5f)
+                .merge(false);
+        for (Solution solution : TestUtils.verify(problem)) {
+            Pair<Set<GroundTerm>, Set<GroundTerm>> enumerated = solution.enumerate();
+            Pair<Iterator<GroundTerm>, Iterator<GroundTerm>> instances = solution.instances();
+            List<GroundTerm> lhs = new ArrayList<>();
+            instances.left.forEachRemaining(lhs::add);
+            // one term per combination, none twice
+            long combinations = solution.lhs.substitutions.values().stream().mapToLong(Set::size).reduce(1, (a, b) -> a * b);
+            assert lhs.size() == combinations;
+            assert enumerated.left.equals(new HashSet<>(lhs));
+            assert enumerated.left.size() == lhs.size();
+            
+            Pair<BigInteger, BigInteger> counts = solution.countInstances();
+            assert counts.left.equals(BigInteger.valueOf(enumerated.left.size()));
+            assert counts.right.equals(BigInteger.valueOf(enumerated.right.size()));
+            Pair<List<GroundTerm>, List<GroundTerm>> samples = solution.sample(20, new Random(42));
+            assert samples.left.size() == 20 && enumerated.left.containsAll(samples.left);
+            assert samples.right.size() == 20 && enumerated.right.containsAll(samples.right);
+        }
+    }
+    
+    @Test
+    public void witnessPolicy() {
+        for (boolean merge : new boolean[]{false, true}) {
+            Problem problem = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                    .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                    .lambda(0.5f)
+                    .merge(merge);
+            Map<String, Solution> all = byGeneralization(TestUtils.verify(problem.witnesses(WitnessPolicy.ALL)));
+            Map<String, Solution> best = byGeneralization(TestUtils.verify(problem.witnesses(WitnessPolicy.BEST)));
+            Map<String, Solution> count = byGeneralization(TestUtils.verify(problem.witnesses(WitnessPolicy.COUNT)));
+            Map<String, Solution> none = byGeneralization(TestUtils.verify(problem.witnesses(WitnessPolicy.NONE)));
+            assert all.keySet().equals(best.keySet()) && all.keySet().equals(count.keySet()) && all.keySet().equals(none.keySet());
+            for (String generalization : all.keySet()) {
+                Solution solution = all.get(generalization);
+                Pair<Set<GroundTerm>, Set<GroundTerm>> enumerated = solution.enumerate();
+                Pair<Set<GroundTerm>, Set<GroundTerm>> bestEnumerated = best.get(generalization).enumerate();
+                assert !bestEnumerated.left.isEmpty() && enumerated.left.containsAll(bestEnumerated.left);
+                assert !bestEnumerated.right.isEmpty() && enumerated.right.containsAll(bestEnumerated.right);
+                
+                assert count.get(generalization).lhs.substitutions == null;
+                assert solution.countInstances().left.equals(count.get(generalization).countInstances().left);
+                assert solution.countInstances().right.equals(count.get(generalization).countInstances().right);
+                
+                assert none.get(generalization).lhs == null;
+            }
+        }
+    }
+    
+    private static Map<String, Solution> byGeneralization(Set<Solution> solutions) {
+        return solutions.stream().collect(Collectors.toMap(solution -> solution.generalization.toString(), solution -> solution));
+    }
+    
+    @Test
+    public void restrictionTypeShortcuts() {
+        String[][] problems = {
+                // CORRESPONDENCE_MAPPING: no consistency checks, no ANON filter
+                {"f(a(), e(), h(b())) ?= g(c(), b(), h(d()))", "f g [0.8] {1 1, 2 2, 3 3} ; a c [0.7] {} ; b d [0.6] {}"},
+                // MAPPING: no consistency checks, but irrelevant positions
+                {"f(a(), e()) ?= g(c(), b())", "f g [0.8] {2 2} ; h f [0.7] {1 2} ; h g [0.9] {1 2} ; a c [0.6] {}"},
+                // CORRESPONDENCE: no ANON filter, but arguments which map to several others
+                {"f(a(), b(), e()) ?= g(a(), d(), b())", "h f [0.7] {1 1, 1 2, 2 3} ; h g [0.8] {1 1, 1 2, 2 3} ; f g [0.9] {1 1, 2 2, 3 3} ; a c [0.7] {} ; b c [0.6] {} ; c d [0.6] {}"},
+        };
+        for (String[] problem : problems) {
+            for (boolean merge : new boolean[]{true, false}) {
+                Problem shortcuts = new Problem(problem[0]).proximityRelations(problem[1]).lambda(0.5f).merge(merge);
+                Problem general = new Problem(problem[0])
+                        .customFuzzySystem(new UnrestrictedFuzzySystem(shortcuts.getEquation(), problem[1]))
+                        .lambda(0.5f)
+                        .merge(merge);
+                Set<String> expected = TestUtils.canonicalWithWitnesses(TestUtils.verify(general));
+                assert expected.size() > 1;
+                assert expected.equals(TestUtils.canonicalWithWitnesses(TestUtils.verify(shortcuts)));
+            }
+        }
+    }
+    
+    /**
+     * The fuzzy system of the given <b>relations</b>, which claims to be {@linkplain FuzzySystem.RestrictionType#UNRESTRICTED},
+     * so the algorithm takes none of its restriction-type shortcuts.
+     */
+    private static class UnrestrictedFuzzySystem implements FuzzySystem {
+        private final Map<String, Map<String, ProximityRelation>> proximityClasses = new HashMap<>();
+        private final Map<String, Integer> arities = new HashMap<>();
+        
+        UnrestrictedFuzzySystem(Pair<GroundTerm, GroundTerm> equation, String relations) {
+            List<ProximityRelation> all = new ArrayList<>();
+            for (ProximityRelation relation : Parser.parseProximityRelations(relations)) {
+                all.add(relation);
+                all.add(relation.flipped());
+            }
+            inferArities(equation.left);
+            inferArities(equation.right);
+            for (ProximityRelation relation : all) {
+                arities.merge(relation.f, relation.argMapping.size(), Math::max);
+            }
+            arities.forEach((f, arity) -> add(new ProximityRelation(f, f, 1.0f, Data.list(arity, ArraySet::singleton))));
+            for (ProximityRelation relation : all) {
+                List<Set<Integer>> argMapping = new ArrayList<>(relation.argMapping);
+                Data.pad(argMapping, arities.get(relation.f), Collections::emptySet);
+                add(new ProximityRelation(relation.f, relation.g, relation.proximity, argMapping));
+            }
+        }
+        
+        private void inferArities(GroundTerm term) {
+            arities.put(term.head, term.arguments.size());
+            term.arguments.forEach(this::inferArities);
+        }
+        
+        private void add(ProximityRelation relation) {
+            proximityClasses.computeIfAbsent(relation.f, f -> new HashMap<>()).put(relation.g, relation);
+        }
+        
+        @Override
+        public ProximityRelation proximityRelation(String f, String g) {
+            return proximityClasses.get(f).get(g);
+        }
+        
+        @Override
+        public ArraySet<String> commonProximates(ArraySet<GroundTerm> terms) {
+            Set<String> common = null;
+            for (GroundTerm term : terms) {
+                Set<String> proximates = proximityClasses.get(term.head).keySet();
+                if (common == null) {
+                    common = new HashSet<>(proximates);
+                } else {
+                    common.retainAll(proximates);
+                }
+            }
+            return ArraySet.of(new ArrayList<>(common), true);
+        }
+        
+        @Override
+        public int arity(String f) {
+            return arities.get(f);
+        }
+        
+        @Override
+        public RestrictionType restrictionType() {
+            return RestrictionType.UNRESTRICTED;
+        }
+    }
+    
+    @Test
+    public void consistent() {
+        Algorithm algorithm = new Algorithm(new Problem("h(f(a()), f(c()), f(d())) ?= h(a(), c(), d())")
+                .proximityRelations("a b [0.7] {} ; b c [0.7] {}")
+                .lambda(0.5f));
+        assert algorithm.consistent(terms("a()", "c()")); // via b
+        assert !algorithm.consistent(terms("a()", "d()"));
+        assert algorithm.consistent(terms("f(a())", "f(c())"));
+        assert !algorithm.consistent(terms("f(a())", "f(d())"));
+        assert !algorithm.consistent(terms("f(a())", "a()"));
+        assert algorithm.consistent(terms("f(d())"));
+        
+        // deeply nested terms don't overflow the stack
+        GroundTerm deepA = Parser.parseTerm("a()"), deepC = Parser.parseTerm("c()"), deepD = Parser.parseTerm("d()");
+        for (int depth = 0; depth < 100_000; depth++) {
+            deepA = new GroundTerm("f", Collections.singletonList(deepA));
+            deepC = new GroundTerm("f", Collections.singletonList(deepC));
+            deepD = new GroundTerm("f", Collections.singletonList(deepD));
+            // hashed bottom-up, so hashing doesn't recurse either
+            deepA.hashCode();
+            deepC.hashCode();
+            deepD.hashCode();
+        }
+        assert algorithm.consistent(ArraySet.of(Arrays.asList(deepA, deepC)));
+        assert !algorithm.consistent(ArraySet.of(Arrays.asList(deepA, deepD)));
+    }
+    
+    private static ArraySet<GroundTerm> terms(String... terms) {
+        return ArraySet.of(Arrays.stream(terms).map(Parser::parseTerm).collect(Collectors.toList()));
+    }
+    
+    @Test
+    public void termArena() {
+        String[][] problems = {
+                {"f(a(), c()) ?= g(a())", "a b [0.9]{} ; b c [0.8]{} ; h f [0.7]{1 1, 1 2} ; h g [0.6]{1 1}"},
+                {"f(a(), b()) ?= g(a(), c(), d())", "b c [0.5] {} ; c d [0.6] {} ; h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3}"},
+                {"f(g(x, a()), a(), y) ?= f(g(x, b()), b(), y)", "a b [0.6] {}"}};
+        for (String[] problem : problems) {
+            String[] sides = problem[0].split("\\?=");
+            Problem expected = new Problem(problem[0]).proximityRelations(problem[1]).lambda(0.5f);
+            Problem arena = new Problem(Parser.parseTermArena(sides[0]), Parser.parseTermArena(sides[1]))
+                    .proximityRelations(problem[1]).lambda(0.5f);
+            assert TestUtils.canonical(TestUtils.verify(arena)).equals(TestUtils.canonical(expected.solve()));
+        }
+    }
+    
     // @Test
     public void benchmark() {
         String problem = bigEquation();
@@ -1,10 +1,17 @@
 package at.jku.risc.aau;
 
+import at.jku.risc.aau.impl.Parser;
+import at.jku.risc.aau.term.ArenaTerm;
+import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.term.MappedVariableTerm;
+import at.jku.risc.aau.term.TermArena;
 import at.jku.risc.aau.util.Data;
 import at.jku.risc.aau.util.Pair;
 import at.jku.risc.aau.util.Panic;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
+
 import static at.jku.risc.aau.impl.Algorithm.solve;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 
@@ -91,4 +98,56 @@ public class InitializerTest {
         solve("a() ?= b()", "a b [0.5] {}", 1.0f);
         assertThrows(IllegalArgumentException.class, () -> solve("a() ?= b()", "a b [0.5] {}", 1.000001f));
     }
+    
+    @Test
+    public void sharedSubTerms() {
+        Pair<GroundTerm, GroundTerm> equation = Parser.parseEquation("f(g(a(), x), g(a(), x)) ?= h(g(a(), x), g(a, x))");
+        GroundTerm g = equation.left.arguments.get(0);
+        assert g == equation.left.arguments.get(1);
+        assert g == equation.right.arguments.get(0);
+        // 'a' is a variable, 'a()' a constant, so these only look equal
+        assert g.equals(equation.right.arguments.get(1));
+        assert g != equation.right.arguments.get(1);
+        assert equation.right.arguments.get(1).arguments.get(0) instanceof MappedVariableTerm;
+        // each equation gets its own bank, but its terms still equal those of other banks
+        GroundTerm other = Parser.parseEquation("f(g(a(), x)) ?= a()").left.arguments.get(0);
+        assert other != g && other.equals(g) && g.equals(other);
+        assert !other.equals(equation.right.arguments.get(1).arguments.get(0));
+    }
+    
+    @Test
+    public void termArena() {
+        String termString = "f(g(a(), x), g(a(), x), h(g(a, x), k()), _)";
+        GroundTerm term = Parser.parseTerm(termString);
+        TermArena arena = Parser.parseTermArena(termString);
+        assert arena.size() == 13;
+        assert arena.arity(0) == 4 && arena.argument(0, 2) == 7 && arena.end(7) == 12;
+        assert !arena.isVariable(2) && arena.isVariable(3);
+        // the same name is a different symbol as a constant and as a variable
+        assert arena.head(2).equals(arena.head(9)) && arena.symbolId(2) != arena.symbolId(9);
+        
+        GroundTerm view = arena.view();
+        assert view instanceof ArenaTerm;
+        assert view.equals(term) && term.equals(view) && view.hashCode() == term.hashCode();
+        assert view.toString().equals(term.toString());
+        assert view.arguments.get(0).equals(view.arguments.get(1)) && view.arguments.get(0) != view.arguments.get(1);
+        assert view.arguments.get(0) == view.arguments.get(0);
+        // one view per node, however it is reached
+        assert arena.view() == view && arena.view(arena.argument(0, 2)) == view.arguments.get(2);
+        // 'a' is a variable, 'a()' a constant, so these only look equal
+        assert view.arguments.get(0).equals(view.arguments.get(2).arguments.get(0));
+        assert view.arguments.get(2).arguments.get(0).arguments.get(0) instanceof MappedVariableTerm;
+        
+        GroundTerm withAnon = new GroundTerm("f", Arrays.asList(MappedVariableTerm.ANON, term));
+        TermArena anonArena = TermArena.of(withAnon);
+        assert anonArena.view().arguments.get(0) == MappedVariableTerm.ANON;
+        assert anonArena.containsAnon(0) && !anonArena.containsAnon(2) && anonArena.view().equals(withAnon);
+        assert TermArena.of(term).view().equals(view);
+        assert !TermArena.of(term).view().equals(anonArena.view());
+        
+        assertThrows(Panic.ParseException.class, () -> Parser.parseTermArena("f(a(), b())) "));
+        assertThrows(Panic.ParseException.class, () -> Parser.parseTermArena("f(a(), b()"));
+        assertThrows(Panic.ParseException.class, () -> Parser.parseTermArena("a(), b()"));
+        assertThrows(IllegalStateException.class, () -> TermArena.builder().open("f").build());
+    }
 }
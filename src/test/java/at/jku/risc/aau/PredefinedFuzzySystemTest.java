@@ -3,6 +3,10 @@ package at.jku.risc.aau;
 import at.jku.risc.aau.impl.Parser;
 import org.junit.jupiter.api.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
 public class PredefinedFuzzySystemTest {
     @Test
     public void flippedRelationsAreSymmetric() {
@@ -13,6 +17,20 @@ public class PredefinedFuzzySystemTest {
         }
     }
     
+    @Test
+    public void manySymbols() {
+        // beyond the dense matrix limit, relations are looked up in the proximity classes instead
+        Problem problem = new Problem("f(h(a, b(), c(), d()), b()) ?= g(f(a, b()), b(), c())")
+                .proximityRelations("h f [0.7] {1 1, 3 2, 4 2} ; h g [0.8] {1 1, 3 3} ; c d [0.6] {}")
+                .lambda(0.5f);
+        Set<String> few = TestUtils.canonical(TestUtils.verify(problem));
+        Map<String, Integer> arities = new HashMap<>();
+        for (int idx = 0; idx < 2000; idx++) {
+            arities.put("unused" + idx, idx % 3);
+        }
+        assert few.equals(TestUtils.canonical(TestUtils.verify(problem.arities(arities))));
+    }
+    
     private static boolean symmetric(ProximityRelation forward) {
         ProximityRelation flipped = forward.flipped();
         if (forward.f != flipped.g || forward.g != flipped.f || forward.proximity != flipped.proximity) {
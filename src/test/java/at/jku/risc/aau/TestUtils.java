@@ -1,13 +1,16 @@
 package at.jku.risc.aau;
 
 import at.jku.risc.aau.impl.Algorithm;
+import at.jku.risc.aau.term.FunctionTerm;
 import at.jku.risc.aau.term.GroundTerm;
+import at.jku.risc.aau.term.Term;
+import at.jku.risc.aau.term.VariableTerm;
 import at.jku.risc.aau.util.ArraySet;
 import at.jku.risc.aau.util.Data;
 import at.jku.risc.aau.util.Pair;
 
-import java.util.Collections;
-import java.util.Set;
+import java.util.*;
+import java.util.stream.Collectors;
 
 public class TestUtils {
     public static Set<Solution> verify(Problem problem) {
@@ -18,8 +21,11 @@ public class TestUtils {
             for (Solution solution : solutions) {
                 // var(Solution) <=> keys(witnesses)
                 Set<Integer> v_named = solution.generalization.v_named();
-                assert v_named.equals(solution.lhs.substitutions.keySet())
-                        && v_named.equals(solution.rhs.substitutions.keySet());
+                Pair<Witness, Witness> witnesses = solution.witnesses();
+                assert v_named.equals(witnesses.left.variables()) && v_named.equals(witnesses.right.variables());
+                if (problem.getWitnessPolicy() == WitnessPolicy.COUNT) {
+                    continue;
+                }
                 
                 Pair<Set<GroundTerm>, Set<GroundTerm>> enumerated = solution.enumerate();
 
@@ -41,6 +47,69 @@ public class TestUtils {
         return solutions;
     }
     
+    /**
+     * String representation of the solutions, with variables renamed by order of occurrence,
+     * so solution sets can be compared independently of how the variables were numbered.
+     */
+    public static Set<String> canonical(Collection<Solution> solutions) {
+        Set<String> canonical = new HashSet<>();
+        for (Solution solution : solutions) {
+            StringBuilder sb = new StringBuilder();
+            canonical(solution.generalization, new HashMap<>(), sb);
+            canonical.add(sb.append(" ").append(solution.alpha1).append(" ").append(solution.alpha2).toString());
+        }
+        return canonical;
+    }
+    
+    /**
+     * Like {@linkplain TestUtils#canonical(Collection)}, but also includes the witnesses of each solution,
+     * with their variables renamed the same way.
+     */
+    public static Set<String> canonicalWithWitnesses(Collection<Solution> solutions) {
+        Set<String> canonical = new HashSet<>();
+        for (Solution solution : solutions) {
+            StringBuilder sb = new StringBuilder();
+            Map<Integer, Integer> renaming = new HashMap<>();
+            canonical(solution.generalization, renaming, sb);
+            sb.append(" ").append(solution.alpha1).append(" ").append(solution.alpha2);
+            Pair<Witness, Witness> witnesses = solution.witnesses();
+            if (witnesses.left != null) {
+                sb.append(" LHS ").append(canonical(witnesses.left, renaming)).append(" RHS ").append(canonical(witnesses.right, renaming));
+            }
+            canonical.add(sb.toString());
+        }
+        return canonical;
+    }
+    
+    private static String canonical(Witness witness, Map<Integer, Integer> renaming) {
+        SortedMap<Integer, String> renamed = new TreeMap<>();
+        for (int var : witness.variables()) {
+            if (witness.substitutions == null) {
+                renamed.put(renaming.get(var), "#" + witness.sizes.get(var));
+            } else {
+                List<String> terms = witness.substitutions.get(var).stream().map(Term::toString).sorted().collect(Collectors.toList());
+                renamed.put(renaming.get(var), terms.toString());
+            }
+        }
+        return renamed.toString();
+    }
+    
+    private static void canonical(Term term, Map<Integer, Integer> renaming, StringBuilder sb) {
+        if (term instanceof VariableTerm) {
+            sb.append("x").append(renaming.computeIfAbsent(((VariableTerm) term).var, var -> renaming.size()));
+        } else if (term instanceof FunctionTerm) {
+            FunctionTerm functionTerm = (FunctionTerm) term;
+            sb.append(functionTerm.head).append("(");
+            for (Term argument : functionTerm.arguments) {
+                canonical(argument, renaming, sb);
+                sb.append(",");
+            }
+            sb.append(")");
+        } else {
+            sb.append(term);
+        }
+    }
+    
     public static boolean close(double a, double b) {
         return Math.abs(a - b) < 0.00001f * Math.abs(a + b) / 2;
     }